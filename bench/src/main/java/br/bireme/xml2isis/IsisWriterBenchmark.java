@@ -0,0 +1,101 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IsisWriter.addField/saveRecord throughput, with records of a typical size
+ * and with records near the max number of fields.
+ *
+ * @author Heitor Barbieri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IsisWriterBenchmark {
+    @Param({"60", "30000"})
+    public int fields;
+
+    /** true: records kept in memory; false: records written to a master */
+    @Param({"true", "false"})
+    public boolean buffered;
+
+    @Param({"ISO-8859-1", "UTF-8"})
+    public String encoding;
+
+    private File dir;
+    private IsisWriter writer;
+    private int[] tags;
+    private String[] contents;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, BrumaException {
+        final Random random = new Random(1);
+
+        dir = File.createTempFile("isiswriter", "");
+        dir.delete();
+        dir.mkdir();
+        writer = new IsisWriter(new File(dir, "bench").getPath(), encoding,
+             new HashSet<Integer>(), IsisWriter.MEDLINE_MAX_FIELD_SIZE, buffered);
+        tags = new int[fields];
+        contents = new String[fields];
+        for (int idx = 0; idx < fields; idx++) {
+            final StringBuilder builder = new StringBuilder();
+
+            tags[idx] = 1 + random.nextInt(999);
+            for (int len = random.nextInt(25); len >= 0; len--) {
+                builder.append((char)('a' + random.nextInt(26)));
+            }
+            builder.append(" café");
+            contents[idx] = builder.toString();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws BrumaException {
+        writer.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void saveRecord() throws BrumaException {
+        writer.newRecord();
+        for (int idx = 0; idx < fields; idx++) {
+            writer.addField(tags[idx], contents[idx]);
+        }
+        writer.saveRecord(null);
+        if (buffered) {
+            writer.takeRecords();
+        }
+    }
+}
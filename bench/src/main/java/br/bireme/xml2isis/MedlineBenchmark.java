@@ -0,0 +1,68 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Record;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Medline.parseRecord over records with the temporary MeshHeading fields.
+ *
+ * @author Heitor Barbieri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MedlineBenchmark {
+    @Param({"10", "100"})
+    public int headings;
+
+    private Record record;
+
+    @Setup
+    public void setup() throws BrumaException {
+        final Random random = new Random(1);
+
+        record = new Record();
+        record.addField(969, "10000000");
+        record.addField(352, "Some article title");
+        record.addField(2000, "\n");
+        for (int idx = 0; idx < headings; idx++) {
+            record.addField(Medline.DESCRIPTOR_NAME_MTYN,
+                                             random.nextBoolean() ? "Y" : "N");
+            record.addField(Medline.DESCRIPTOR_NAME, "Descriptor " + idx);
+            for (int qual = random.nextInt(3); qual > 0; qual--) {
+                record.addField(Medline.QUALIFIER_NAME_MTYN,
+                                             random.nextBoolean() ? "Y" : "N");
+                record.addField(Medline.QUALIFIER_NAME, "qualifier " + qual);
+            }
+        }
+        record.addField(372, "Some author");
+    }
+
+    @Benchmark
+    public Record parseRecord() throws BrumaException {
+        return Medline.parseRecord(record);
+    }
+}
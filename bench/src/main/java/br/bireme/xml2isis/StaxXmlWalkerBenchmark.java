@@ -0,0 +1,94 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Record;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StaxXmlWalker.convert over synthetic PubMed documents. The records go to a
+ * buffered IsisWriter, so no disk writes are measured. The author affiliations
+ * are removable fields, so the GIANT records are pruned to fit in 32k fields.
+ *
+ * @author Heitor Barbieri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StaxXmlWalkerBenchmark {
+    private static final int AFFILIATION_TAG = 3727;
+
+    /** SyntheticPubmed.Size, which the generated code can not see */
+    @Param({"SMALL", "TYPICAL", "GIANT"})
+    public String size;
+
+    /** legacy: '&' rewriting reader; otherwise --nativeEntities inputMode */
+    @Param({"legacy", "chars", "bytes", "mmap"})
+    public String input;
+
+    @Param({"false", "true"})
+    public boolean createMissingFields;
+
+    private File xml;
+    private WalkerFactory walkers;
+    private IsisWriter writer;
+
+    @Setup
+    public void setup() throws IOException, BrumaException {
+        final XPathTree tree = new XPathTree(SyntheticPubmed.convTable());
+        final boolean legacy = input.equals("legacy");
+
+        xml = new SyntheticPubmed(1).write(SyntheticPubmed.Size.valueOf(size));
+        walkers = new WalkerFactory(null, tree, createMissingFields, false,
+                "UTF-8", !legacy, legacy ? StaxXmlWalker.InputMode.CHARS
+                       : StaxXmlWalker.InputMode.valueOf(input.toUpperCase()));
+        writer = new IsisWriter("bench", "UTF-8",
+                         new HashSet<Integer>(Arrays.asList(AFFILIATION_TAG)),
+                         IsisWriter.MEDLINE_MAX_FIELD_SIZE, true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        xml.delete();
+    }
+
+    @Benchmark
+    public List<Record> convert() throws IOException, XMLStreamException,
+                                                             BrumaException {
+        final StaxXmlWalker walker = walkers.newWalker(xml, writer);
+
+        try {
+            walker.convert();
+        } finally {
+            walker.close();
+        }
+        return writer.takeRecords();
+    }
+}
@@ -0,0 +1,233 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates deterministic PubMed shaped xml documents, so the benchmarks run
+ * offline and give reproducible numbers. The same seed and sizes always
+ * produce the same file.
+ *
+ * @author Heitor Barbieri
+ */
+class SyntheticPubmed {
+    /** Document shapes used by the benchmarks. */
+    enum Size {
+        SMALL(10, 4),          // a small daily update file
+        TYPICAL(1000, 6),      // a slice of a baseline file
+        GIANT(2, 10000);       // records with 10k authors (40k fields)
+
+        final int records;
+        final int authors;
+
+        Size(final int records,
+             final int authors) {
+            this.records = records;
+            this.authors = authors;
+        }
+    }
+
+    private static final String[] WORDS = {
+        "alpha", "beta", "gamma", "delta", "café", "naïve",
+        "résumé", "kappa", "lambda", "sigma", "omega", "theta"
+    };
+
+    private final Random random;
+
+    SyntheticPubmed(final long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Writes a PubmedArticleSet file in UTF-8.
+     * @param records number of PubmedArticle elements
+     * @param authors number of authors of each article
+     */
+    void write(final File out,
+               final int records,
+               final int authors) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                         new FileOutputStream(out), StandardCharsets.UTF_8))) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<PubmedArticleSet>\n");
+            for (int rec = 0; rec < records; rec++) {
+                writeArticle(writer, rec, authors);
+            }
+            writer.write("</PubmedArticleSet>\n");
+        }
+    }
+
+    /**
+     * Writes a temporary file with the given shape.
+     */
+    File write(final Size size) throws IOException {
+        final File out = File.createTempFile("pubmed-"
+                          + size.name().toLowerCase() + "-", ".xml");
+
+        out.deleteOnExit();
+        write(out, size.records, size.authors);
+
+        return out;
+    }
+
+    private void writeArticle(final Writer writer,
+                              final int rec,
+                              final int authors) throws IOException {
+        writer.write("  <PubmedArticle>\n");
+        writer.write("    <MedlineCitation Status=\"MEDLINE\" Owner=\"NLM\">\n");
+        element(writer, "      ", "PMID", Integer.toString(10000000 + rec));
+        writer.write("      <DateRevised>");
+        element(writer, "", "Year", Integer.toString(2000 + random.nextInt(20)));
+        element(writer, "", "Month", Integer.toString(1 + random.nextInt(12)));
+        element(writer, "", "Day", Integer.toString(1 + random.nextInt(28)));
+        writer.write("</DateRevised>\n");
+        writer.write("      <Article PubModel=\"Print\">\n");
+        writer.write("        <Journal>\n");
+        writer.write("          <ISSN IssnType=\"Print\">1234-5678</ISSN>\n");
+        writer.write("          <JournalIssue CitedMedium=\"Print\">");
+        element(writer, "", "Volume", Integer.toString(random.nextInt(100)));
+        element(writer, "", "Issue", Integer.toString(random.nextInt(12)));
+        writer.write("<PubDate>");
+        element(writer, "", "Year", "2019");
+        writer.write("</PubDate></JournalIssue>\n");
+        element(writer, "          ", "Title", "Journal &amp; " + words(4));
+        writer.write("        </Journal>\n");
+        element(writer, "        ", "ArticleTitle",
+                                 words(12) + " &lt;i&gt;in vitro&lt;/i&gt;");
+        writer.write("        <Abstract>\n");
+        for (int idx = 0; idx < 3; idx++) {
+            writer.write("          <AbstractText Label=\"L" + idx + "\">");
+            writer.write(words(60));
+            writer.write("</AbstractText>\n");
+        }
+        writer.write("        </Abstract>\n");
+        writer.write("        <AuthorList CompleteYN=\"Y\">\n");
+        for (int idx = 0; idx < authors; idx++) {
+            writer.write("          <Author ValidYN=\"Y\">");
+            element(writer, "", "LastName", words(1));
+            element(writer, "", "ForeName", words(1));
+            element(writer, "", "Initials", "X");
+            writer.write("<AffiliationInfo>");
+            element(writer, "", "Affiliation", words(10));
+            writer.write("</AffiliationInfo></Author>\n");
+        }
+        writer.write("        </AuthorList>\n");
+        element(writer, "        ", "Language", "eng");
+        writer.write("        <PublicationTypeList>");
+        element(writer, "", "PublicationType", "Journal Article");
+        writer.write("</PublicationTypeList>\n");
+        writer.write("      </Article>\n");
+        writer.write("      <MedlineJournalInfo>");
+        element(writer, "", "Country", "Brazil");
+        element(writer, "", "MedlineTA", words(2));
+        writer.write("</MedlineJournalInfo>\n");
+        writer.write("      <ChemicalList>\n");
+        for (int idx = random.nextInt(4); idx > 0; idx--) {
+            writer.write("        <Chemical>");
+            element(writer, "", "RegistryNumber", Integer.toString(idx));
+            element(writer, "", "NameOfSubstance", words(2));
+            writer.write("</Chemical>\n");
+        }
+        writer.write("      </ChemicalList>\n");
+        writer.write("      <MeshHeadingList>\n");
+        for (int idx = 1 + random.nextInt(8); idx > 0; idx--) {
+            writer.write("        <MeshHeading>");
+            writer.write("<DescriptorName UI=\"D" + idx + "\" MajorTopicYN=\""
+                                                              + yesNo() + "\">");
+            writer.write(words(2));
+            writer.write("</DescriptorName>");
+            for (int qual = random.nextInt(3); qual > 0; qual--) {
+                writer.write("<QualifierName UI=\"Q" + qual
+                               + "\" MajorTopicYN=\"" + yesNo() + "\">");
+                writer.write(words(1));
+                writer.write("</QualifierName>");
+            }
+            writer.write("</MeshHeading>\n");
+        }
+        writer.write("      </MeshHeadingList>\n");
+        writer.write("    </MedlineCitation>\n");
+        writer.write("    <PubmedData><History>");
+        writer.write("<PubMedPubDate PubStatus=\"pubmed\">");
+        element(writer, "", "Year", "2019");
+        element(writer, "", "Month", "1");
+        element(writer, "", "Day", "2");
+        writer.write("</PubMedPubDate></History></PubmedData>\n");
+        writer.write("  </PubmedArticle>\n");
+    }
+
+    private void element(final Writer writer,
+                         final String indent,
+                         final String name,
+                         final String content) throws IOException {
+        writer.write(indent);
+        writer.write('<');
+        writer.write(name);
+        writer.write('>');
+        writer.write(content);
+        writer.write("</");
+        writer.write(name);
+        writer.write('>');
+        if (!indent.isEmpty()) {
+            writer.write('\n');
+        }
+    }
+
+    private String words(final int num) {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int idx = 0; idx < num; idx++) {
+            if (idx > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+    private String yesNo() {
+        return random.nextBoolean() ? "Y" : "N";
+    }
+
+    /**
+     * @return the conversion table used by the benchmarks: the
+     *         xml2isis.convTable system property or the project mdl.tab
+     */
+    static File convTable() {
+        final String prop = System.getProperty("xml2isis.convTable");
+
+        if (prop != null) {
+            return new File(prop);
+        }
+        for (String path : new String[] {"mdl.tab", "../mdl.tab"}) {
+            final File file = new File(path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new IllegalStateException(
+                         "mdl.tab not found, set -Dxml2isis.convTable=<file>");
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println(
+                      "usage: SyntheticPubmed <outFile> <records> <authors> <seed>");
+            System.exit(1);
+        }
+        new SyntheticPubmed(Long.parseLong(args[3])).write(new File(args[0]),
+                    Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    }
+}
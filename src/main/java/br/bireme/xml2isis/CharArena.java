@@ -0,0 +1,222 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.util.Arrays;
+
+/**
+ * Single char buffer with the text of all open elements of a walker. An
+ * element text starts where the buffer ends when the element is opened and
+ * is removed when the element is closed, so the text of the open elements
+ * is always contiguous (a stack). The text is read through a reusable
+ * CharSequence view, without intermediate String objects.
+ *
+ * @author Heitor Barbieri
+ */
+class CharArena {
+    static final int DEFAULT_SIZE = 16 * 1024;
+
+    /** View of a slice of the arena, valid until the next change. */
+    private final class Slice implements CharSequence {
+        private int offset;
+        private int len;
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if ((index < 0) || (index >= len)) {
+                throw new IndexOutOfBoundsException("index:" + index);
+            }
+            return chars[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(final int start,
+                                        final int end) {
+            if ((start < 0) || (end > len) || (start > end)) {
+                throw new IndexOutOfBoundsException(
+                                          "start:" + start + " end:" + end);
+            }
+            return new String(chars, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, len);
+        }
+
+        /** chars of the arena of this slice */
+        private char[] array() {
+            return chars;
+        }
+    }
+
+    private final Slice slice;
+    private char[] chars;
+    private int end;    // number of used chars
+
+    CharArena() {
+        this(DEFAULT_SIZE);
+    }
+
+    CharArena(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size <= 0");
+        }
+        slice = new Slice();
+        chars = new char[size];
+        end = 0;
+    }
+
+    /**
+     * @return the position where the text of a new element starts
+     */
+    int mark() {
+        return end;
+    }
+
+    /**
+     * Removes the text after the position.
+     */
+    void reset(final int pos) {
+        assert (pos >= 0) && (pos <= end);
+        end = pos;
+    }
+
+    void clear() {
+        end = 0;
+    }
+
+    /**
+     * @return view of the text from the position to the end of the arena. It
+     *         is changed by the next call of slice().
+     */
+    CharSequence slice(final int pos) {
+        return slice(pos, end - pos);
+    }
+
+    /**
+     * @return view of 'len' chars from the position. It is changed by the
+     *         next call of slice().
+     */
+    CharSequence slice(final int pos,
+                       final int len) {
+        assert (pos >= 0) && (len >= 0) && (pos + len <= end);
+        slice.offset = pos;
+        slice.len = len;
+        return slice;
+    }
+
+    CharArena append(final char ch) {
+        ensure(1);
+        chars[end++] = ch;
+        return this;
+    }
+
+    CharArena append(final String str) {
+        final int len = str.length();
+
+        ensure(len);
+        str.getChars(0, len, chars, end);
+        end += len;
+        return this;
+    }
+
+    /**
+     * Appends the first 'len' chars of the sequence. Slices of an arena and
+     * strings are copied in bulk.
+     */
+    CharArena append(final CharSequence seq,
+                     final int len) {
+        assert len <= seq.length();
+        ensure(len);
+        if (seq instanceof Slice) {
+            final Slice src = (Slice)seq;
+
+            System.arraycopy(src.array(), src.offset, chars, end, len);
+        } else if (seq instanceof String) {
+            ((String)seq).getChars(0, len, chars, end);
+        } else {
+            for (int idx = 0; idx < len; idx++) {
+                chars[end + idx] = seq.charAt(idx);
+            }
+        }
+        end += len;
+        return this;
+    }
+
+    CharArena append(final char[] buf,
+                     final int off,
+                     final int len) {
+        ensure(len);
+        System.arraycopy(buf, off, chars, end, len);
+        end += len;
+        return this;
+    }
+
+    /**
+     * Appends the chars replacing the 'from' char by the 'to' one.
+     */
+    CharArena append(final char[] buf,
+                     final int off,
+                     final int len,
+                     final char from,
+                     final char to) {
+        ensure(len);
+        for (int idx = 0; idx < len; idx++) {
+            final char ch = buf[off + idx];
+
+            chars[end++] = (ch == from) ? to : ch;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the chars writing '&amp;', '&lt;' and '&gt;' for the '&', '<'
+     * and '>' chars.
+     */
+    CharArena appendEscaped(final char[] buf,
+                            final int off,
+                            final int len) {
+        final int last = off + len;
+        int start = off;   // first char not appended yet
+
+        for (int idx = off; idx < last; idx++) {
+            final char ch = buf[idx];
+
+            if ((ch == '&') || (ch == '<') || (ch == '>')) {
+                append(buf, start, idx - start);
+                append((ch == '&') ? "&amp;" : (ch == '<') ? "&lt;" : "&gt;");
+                start = idx + 1;
+            }
+        }
+        return append(buf, start, last - start);
+    }
+
+    /**
+     * Moves 'len' chars to a lower position (compaction), the text after
+     * them is kept.
+     */
+    void moveDown(final int from,
+                  final int to,
+                  final int len) {
+        assert (to <= from) && (from + len <= end);
+        System.arraycopy(chars, from, chars, to, len);
+    }
+
+    private void ensure(final int len) {
+        if (end + len > chars.length) {
+            chars = Arrays.copyOf(chars,
+                             Math.max(end + len, chars.length + (chars.length >> 1)));
+        }
+    }
+}
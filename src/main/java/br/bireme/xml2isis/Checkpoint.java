@@ -0,0 +1,300 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Master;
+import bruma.master.MasterFactory;
+import bruma.master.Record;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the input files already converted into a master (file
+ * '&lt;outDb&gt;.ckp'). Each line has the first and last mfns produced by a
+ * file, its size, modification time, CRC32 and path (relative to the input
+ * directory or absolute). A line is appended only after all the records of
+ * the file are written to the master, so a new run can go back to the last
+ * journal mfn and skip the files already converted.
+ *
+ * @author Heitor Barbieri
+ */
+class Checkpoint {
+    static final String EXTENSION = ".ckp";
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** A converted file. */
+    static class Entry {
+        final int firstMfn;
+        final int lastMfn;   // firstMfn - 1 if the file produced no records
+        final long size;
+        final long mtime;
+        final long crc;
+        final String name;
+
+        Entry(final int firstMfn,
+              final int lastMfn,
+              final long size,
+              final long mtime,
+              final long crc,
+              final String name) {
+            this.firstMfn = firstMfn;
+            this.lastMfn = lastMfn;
+            this.size = size;
+            this.mtime = mtime;
+            this.crc = crc;
+            this.name = name;
+        }
+
+        static Entry parse(final String line) throws IOException {
+            final String[] split = line.split("\t", 6);
+
+            if (split.length != 6) {
+                throw new IOException("invalid checkpoint line:" + line);
+            }
+            try {
+                return new Entry(Integer.parseInt(split[0]),
+                                 Integer.parseInt(split[1]),
+                                 Long.parseLong(split[2]),
+                                 Long.parseLong(split[3]),
+                                 Long.parseLong(split[4], 16),
+                                 split[5]);
+            } catch (NumberFormatException nfe) {
+                throw new IOException("invalid checkpoint line:" + line, nfe);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return firstMfn + "\t" + lastMfn + "\t" + size + "\t" + mtime
+                                + "\t" + Long.toHexString(crc) + "\t" + name;
+        }
+    }
+
+    private final File journal;
+    private final Path baseDir;              // null for absolute paths
+    private final Map<String, Entry> entries; // file path -> entry
+    private Writer out;
+    private int lastMfn;  // last mfn of the journal
+
+    /**
+     * @param outDb output master
+     * @param resume if true the existing journal is read, otherwise a new
+     *        one is created
+     * @param baseDir the files are journaled by their paths relative to this
+     *        directory, or by their absolute paths if null
+     */
+    Checkpoint(final String outDb,
+               final boolean resume,
+               final File baseDir) throws IOException {
+        if (outDb == null) {
+            throw new IllegalArgumentException("null outDb");
+        }
+        journal = new File(outDb + EXTENSION);
+        this.baseDir = (baseDir == null) ? null
+                                         : baseDir.getAbsoluteFile().toPath();
+        entries = new HashMap<>();
+        lastMfn = 0;
+        if (resume && journal.isFile()) {
+            load();
+        }
+        out = null;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                 new FileInputStream(journal), StandardCharsets.UTF_8))) {
+            while (true) {
+                final String line = reader.readLine();
+
+                if (line == null) {
+                    break;
+                }
+                if (!line.isEmpty() && (line.charAt(0) != '#')) {
+                    final Entry entry = Entry.parse(line);
+
+                    if (entry.firstMfn != lastMfn + 1) {
+                        throw new IOException("checkpoint mfns out of order:"
+                                                                       + line);
+                    }
+                    entries.put(entry.name, entry);
+                    lastMfn = entry.lastMfn;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the journal has some file
+     */
+    boolean hasEntries() {
+        return !entries.isEmpty();
+    }
+
+    /**
+     * @return last mfn of the converted files
+     */
+    int getLastMfn() {
+        return lastMfn;
+    }
+
+    /**
+     * @return the journal key of the file: the files with the same name in
+     *         different directories (--recursive, fileList) are not mixed
+     */
+    private String key(final File file) {
+        final Path path = file.getAbsoluteFile().toPath();
+
+        return (baseDir == null) ? path.toString()
+                                 : baseDir.relativize(path).toString();
+    }
+
+    /**
+     * A file was converted if the journal has its path with the same size
+     * and modification time, or the same size and CRC32 (for example, a file
+     * copied again). The CRC32 is computed only if the time differs.
+     */
+    boolean isDone(final File file) throws IOException {
+        final Entry entry = entries.get(key(file));
+        final boolean done = (entry != null) && (entry.size == file.length())
+                 && ((entry.mtime == file.lastModified())
+                                          || (entry.crc == checksum(file)));
+
+        if ((entry != null) && !done) {
+            System.err.println("WARNING: file changed since it was converted"
+                              + " (mfns " + entry.firstMfn + "-" + entry.lastMfn
+                              + "):" + file);
+        }
+        return done;
+    }
+
+    /**
+     * Takes the master back to the journal last mfn, so the records of a
+     * file whose conversion was interrupted are discarded. The master
+     * files are cut after the record lastMfn or, if they were not written in
+     * the FfiMasterWriter format, the records are copied into a compacted
+     * master that replaces the original one.
+     */
+    void truncate(final String outDb,
+                  final String encoding,
+                  final int threads) throws BrumaException {
+        FfiMasterWriter.recover(outDb);  // written with mstOutput=direct|mmap
+
+        final Master mst = MasterFactory.getInstance(outDb)
+                                        .setEncoding(encoding)
+                                        .open();
+        final int mstLast = mst.getControlRecord().getNxtmfn() - 1;
+
+        mst.close();
+        if (mstLast < lastMfn) {
+            throw new BrumaException("master " + outDb + " last mfn:" + mstLast
+                                 + " is before the checkpoint mfn:" + lastMfn);
+        }
+        if (mstLast > lastMfn) {
+            final String tmpName = outDb + "_checkpoint";
+
+            System.out.println("Discarding records " + (lastMfn + 1) + "-"
+                                                  + mstLast + " of " + outDb);
+            if (FfiMasterWriter.truncate(outDb, lastMfn)) {
+                return;
+            }
+            new MasterTransformer(outDb, encoding, threads).transform(
+                new MasterTransformer.Transform() {
+                    @Override
+                    public Record transform(final Record rec) {
+                        return rec;
+                    }
+                }, tmpName, true, lastMfn);
+            MasterTransformer.replaceMaster(tmpName, outDb);
+        }
+    }
+
+    /**
+     * Appends the file to the journal after its records are written.
+     * @param file the converted file, all its records were already saved in
+     *        the writer
+     * @param crc CRC32 of the file bytes, computed while it was read (see
+     *        StaxXmlWalker.openInput)
+     */
+    void fileDone(final IsisWriter writer,
+                  final File file,
+                  final long crc) throws IOException, BrumaException {
+        final long size = file.length();
+        final long mtime = file.lastModified();
+        final String name = key(file);
+
+        writer.mark(new IsisWriter.Marker() {
+            @Override
+            public void reached(final int mfn) throws BrumaException {
+                add(new Entry(lastMfn + 1, mfn, size, mtime, crc, name));
+            }
+        });
+    }
+
+    private void add(final Entry entry) throws BrumaException {
+        try {
+            if (out == null) {
+                final boolean exists = journal.isFile() && !entries.isEmpty();
+
+                out = new BufferedWriter(new OutputStreamWriter(
+                      new FileOutputStream(journal, exists),
+                      StandardCharsets.UTF_8));
+                if (!exists) {
+                    out.write("# firstMfn lastMfn size mtime crc32 file\n");
+                }
+            }
+            out.write(entry.toString());
+            out.write('\n');
+            out.flush();
+        } catch (IOException ioe) {
+            throw new BrumaException(ioe);
+        }
+        entries.put(entry.name, entry);
+        lastMfn = entry.lastMfn;
+    }
+
+    void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * @return CRC32 of the file bytes
+     */
+    static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                final int read = in.read(buffer);
+
+                if (read == -1) {
+                    break;
+                }
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
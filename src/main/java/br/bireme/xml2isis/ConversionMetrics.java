@@ -0,0 +1,256 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.master.Field;
+import bruma.master.Record;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a conversion run, updated by the walkers and writers of all
+ * threads. The walkers keep their counts locally and add them once per
+ * record, so the hot loops only pay for a few nanoTime calls.
+ *
+ * @author Heitor Barbieri
+ */
+class ConversionMetrics implements ConversionMetricsMBean {
+    /** Why a record was not written. */
+    enum Skip { TOO_MANY_FIELDS, TOO_BIG, INVALID }
+
+    private final long startTime;  // System.nanoTime()
+    private final LongAdder files;
+    private final LongAdder records;
+    private final LongAdder bytes;
+    private final LongAdder elementsSeen;
+    private final LongAdder elementsMapped;
+    private final LongAdder fields;
+    private final LongAdder tooManyFields;
+    private final LongAdder tooBig;
+    private final LongAdder invalid;
+    private final LongAdder parseNanos;
+    private final LongAdder buildNanos;
+    private final LongAdder writeNanos;
+    private final ConcurrentHashMap<Integer, LongAdder> tags;
+    private ObjectName name;
+
+    ConversionMetrics() {
+        startTime = System.nanoTime();
+        files = new LongAdder();
+        records = new LongAdder();
+        bytes = new LongAdder();
+        elementsSeen = new LongAdder();
+        elementsMapped = new LongAdder();
+        fields = new LongAdder();
+        tooManyFields = new LongAdder();
+        tooBig = new LongAdder();
+        invalid = new LongAdder();
+        parseNanos = new LongAdder();
+        buildNanos = new LongAdder();
+        writeNanos = new LongAdder();
+        tags = new ConcurrentHashMap<>();
+        name = null;
+    }
+
+    /**
+     * Registers this object in the platform MBean server with the name
+     * 'br.bireme.xml2isis:type=ConversionMetrics,name=&lt;outDb&gt;'.
+     */
+    void register(final String outDb) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        name = new ObjectName("br.bireme.xml2isis:type=ConversionMetrics,name="
+                                                    + ObjectName.quote(outDb));
+        server.registerMBean(this, name);
+    }
+
+    void unregister() throws JMException {
+        if (name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    void fileDone() {
+        files.increment();
+    }
+
+    void addBytesRead(final long len) {
+        bytes.add(len);
+    }
+
+    /**
+     * Counts of a walker since its last call.
+     */
+    void addWalked(final long seen,
+                   final long mapped,
+                   final long parse,
+                   final long build) {
+        elementsSeen.add(seen);
+        elementsMapped.add(mapped);
+        parseNanos.add(parse);
+        buildNanos.add(build);
+    }
+
+    void recordSkipped(final Skip reason) {
+        switch (reason) {
+            case TOO_MANY_FIELDS:
+                tooManyFields.increment();
+                break;
+            case TOO_BIG:
+                tooBig.increment();
+                break;
+            default:
+                invalid.increment();
+                break;
+        }
+    }
+
+    /**
+     * @param rec record written to the master
+     * @param nanos time spent writing it
+     */
+    void recordWritten(final Record rec,
+                       final long nanos) {
+        records.increment();
+        writeNanos.add(nanos);
+        fields.add(rec.getNvf());
+        for (Field fld: rec) {
+            countTag(fld.getId());
+        }
+    }
+
+    /**
+     * @param rec record encoded directly into the master
+     */
+    void recordWritten(final RecordBuffer rec,
+                       final long nanos) {
+        final int nvf = rec.getNvf();
+
+        records.increment();
+        writeNanos.add(nanos);
+        fields.add(nvf);
+        for (int idx = 0; idx < nvf; idx++) {
+            countTag(rec.getTag(idx));
+        }
+    }
+
+    private void countTag(final int tag) {
+        LongAdder count = tags.get(tag);
+
+        if (count == null) {
+            final LongAdder other = tags.putIfAbsent(tag,
+                                                 count = new LongAdder());
+            if (other != null) {
+                count = other;
+            }
+        }
+        count.increment();
+    }
+
+    @Override
+    public long getElapsedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    @Override
+    public long getFilesConverted() {
+        return files.sum();
+    }
+
+    @Override
+    public long getRecordsWritten() {
+        return records.sum();
+    }
+
+    @Override
+    public double getRecordsPerSecond() {
+        return perSecond(records.sum());
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return perSecond(bytes.sum());
+    }
+
+    @Override
+    public long getElementsSeen() {
+        return elementsSeen.sum();
+    }
+
+    @Override
+    public long getElementsMapped() {
+        return elementsMapped.sum();
+    }
+
+    @Override
+    public long getFieldsWritten() {
+        return fields.sum();
+    }
+
+    @Override
+    public long getSkippedTooManyFields() {
+        return tooManyFields.sum();
+    }
+
+    @Override
+    public long getSkippedTooBig() {
+        return tooBig.sum();
+    }
+
+    @Override
+    public long getSkippedInvalid() {
+        return invalid.sum();
+    }
+
+    @Override
+    public long getParseTime() {
+        return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+    }
+
+    @Override
+    public long getBuildTime() {
+        return TimeUnit.NANOSECONDS.toMillis(buildNanos.sum());
+    }
+
+    @Override
+    public long getWriteTime() {
+        return TimeUnit.NANOSECONDS.toMillis(writeNanos.sum());
+    }
+
+    /**
+     * @return number of written fields of each tag, in tag order
+     */
+    @Override
+    public Map<Integer, Long> getFieldsPerTag() {
+        final Map<Integer, Long> ret = new TreeMap<>();
+
+        for (Map.Entry<Integer, LongAdder> entry: tags.entrySet()) {
+            ret.put(entry.getKey(), entry.getValue().sum());
+        }
+        return ret;
+    }
+
+    private double perSecond(final long count) {
+        final long nanos = System.nanoTime() - startTime;
+
+        return (nanos <= 0) ? 0 : (count * 1e9) / nanos;
+    }
+}
@@ -0,0 +1,36 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.util.Map;
+
+/**
+ * JMX view of the conversion counters (see ConversionMetrics). Times are the
+ * sum of all threads, in milliseconds. The build time also has the write
+ * time when the walker writes the master itself (one thread, no writeBatch).
+ *
+ * @author Heitor Barbieri
+ */
+public interface ConversionMetricsMBean {
+    long getElapsedTime();
+    long getFilesConverted();
+    long getRecordsWritten();
+    double getRecordsPerSecond();
+    long getBytesRead();
+    double getBytesPerSecond();
+    long getElementsSeen();
+    long getElementsMapped();
+    long getFieldsWritten();
+    long getSkippedTooManyFields();
+    long getSkippedTooBig();
+    long getSkippedInvalid();
+    long getParseTime();
+    long getBuildTime();
+    long getWriteTime();
+    Map<Integer, Long> getFieldsPerTag();
+}
@@ -0,0 +1,607 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Field;
+import bruma.master.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a new ISIS master (.mst and .xrf) with the same bytes of a Bruma
+ * master created with setFFI(true), setMaxGigaSize(32) and
+ * setInMemoryXrf(false), without building the Bruma record buffers. The
+ * fields are encoded straight into a reused direct buffer and the records
+ * are appended to the .mst through a FileChannel. The control record and
+ * the current xrf block are kept in memory and written by flush() and
+ * close(), instead of after every record.
+ * In the mapped mode both files are written through memory mapped regions.
+ * Each new region grows the file by a large chunk, so the pages are flushed
+ * in big sequential writes, and close() cuts the files to their real size.
+ *
+ * @author Heitor Barbieri
+ */
+class FfiMasterWriter {
+    static final int MST_BLOCK_SIZE = 512;
+    static final int XRF_BLOCK_SIZE = 512;
+    static final int XRF_ENTRIES = 127;     // pointers per xrf block
+    static final int SHIFT = 6;             // records start at 64 byte marks
+    static final int CONTROL_SIZE = 32;
+    static final int LEADER_SIZE = IsisWriter.FFI_LEADER_SIZE;
+    static final int DIR_ENTRY_SIZE = IsisWriter.FFI_DIR_ENTRY_SIZE;
+    static final int MAX_BLOCK = (1 << (20 + SHIFT)) - 1;
+    static final int XRF_NEW_FLAG = 1024;   // active record not yet indexed
+    static final byte FILL_CHAR = ' ';
+    static final int DATA_SIZE = 64 * 1024;
+    static final int MST_MAP_CHUNK = 64 * 1024 * 1024;
+    static final int XRF_MAP_CHUNK = 1024 * 1024;
+
+    /**
+     * File written at given positions, through the channel or through memory
+     * mapped regions of 'chunk' bytes. Mapping a region past the end of the
+     * file makes it grow, so the file is preallocated a chunk at a time.
+     */
+    private static final class OutputFile {
+        private final FileChannel channel;
+        private final int chunk;            // 0 if not mapped
+        private MappedByteBuffer first;     // region 0 (control record)
+        private MappedByteBuffer current;
+        private long currentPos;            // file position of 'current'
+
+        private OutputFile(final FileChannel channel,
+                           final int chunk) throws IOException {
+            this.channel = channel;
+            this.chunk = chunk;
+            if (chunk > 0) {
+                first = channel.map(FileChannel.MapMode.READ_WRITE, 0, chunk);
+                current = first;
+                currentPos = 0;
+            }
+        }
+
+        /**
+         * Writes the buffers one after the other, from the position.
+         */
+        private void write(final long position,
+                           final ByteBuffer... bufs) throws IOException {
+            if (chunk == 0) {
+                long remaining = 0;
+
+                for (ByteBuffer buf: bufs) {
+                    remaining += buf.remaining();
+                }
+                channel.position(position);
+                while (remaining > 0) {
+                    remaining -= channel.write(bufs);
+                }
+            } else {
+                long pos = position;
+
+                for (ByteBuffer buf: bufs) {
+                    while (buf.hasRemaining()) {
+                        final MappedByteBuffer region = region(pos);
+                        final int off = (int)(pos % chunk);
+                        final int len = Math.min(buf.remaining(), chunk - off);
+                        final ByteBuffer part = buf.duplicate();
+
+                        part.limit(part.position() + len);
+                        region.position(off);
+                        region.put(part);
+                        buf.position(buf.position() + len);
+                        pos += len;
+                    }
+                }
+            }
+        }
+
+        private MappedByteBuffer region(final long pos) throws IOException {
+            final long start = pos - (pos % chunk);
+
+            if (start == 0) {
+                return first;
+            }
+            if (start != currentPos) {
+                current = channel.map(FileChannel.MapMode.READ_WRITE, start,
+                                                                       chunk);
+                currentPos = start;
+            }
+            return current;
+        }
+
+        /**
+         * Cuts the preallocated chunk and closes the file. The regions are
+         * unmapped when collected.
+         */
+        private void close(final long size) throws IOException {
+            first = null;
+            current = null;
+            try {
+                channel.truncate(size);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private final String dbName;
+    private final OutputFile mst;
+    private final OutputFile xrf;
+    private final CharsetEncoder encoder;
+    private final char fastLimit;       // chars below it are one equal byte
+    private final ByteBuffer control;
+    private final ByteBuffer xrfBlock;
+    private final ByteBuffer fill;
+    private ByteBuffer header;          // leader + directory
+    private ByteBuffer data;            // encoded field contents
+    private final ByteBuffer[] parts;
+    private int[] tags;
+    private int[] lengths;
+    private int nvf;
+    private int nxtmfn;
+    private long filePos;               // .mst position of the next record
+    private int xrfBlockNum;            // 0 based number of the current block
+
+    FfiMasterWriter(final String dbName,
+                    final String encoding) throws BrumaException {
+        this(dbName, encoding, false);
+    }
+
+    /**
+     * Creates the master files. As in Bruma, they must not exist.
+     * @param dbName master name without extension
+     * @param encoding encoding of the field contents
+     * @param mapped if true the files are written through mapped regions
+     */
+    FfiMasterWriter(final String dbName,
+                    final String encoding,
+                    final boolean mapped) throws BrumaException {
+        if (dbName == null) {
+            throw new IllegalArgumentException("null dbName");
+        }
+        if (encoding == null) {
+            throw new IllegalArgumentException("null encoding");
+        }
+        final Charset charset = Charset.forName(encoding);
+
+        this.dbName = dbName;
+        // same replacement as String.getBytes(encoding), used by Bruma
+        this.encoder = charset.newEncoder()
+                              .onMalformedInput(CodingErrorAction.REPLACE)
+                              .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.fastLimit = charset.equals(StandardCharsets.ISO_8859_1) ? '\u0100'
+                             : (isAsciiCompatible(charset) ? '\u0080' : '\0');
+        this.control = ByteBuffer.allocateDirect(MST_BLOCK_SIZE)
+                                 .order(ByteOrder.LITTLE_ENDIAN);
+        this.xrfBlock = ByteBuffer.allocateDirect(XRF_BLOCK_SIZE)
+                                  .order(ByteOrder.LITTLE_ENDIAN);
+        this.fill = ByteBuffer.allocateDirect(1 << SHIFT);
+        while (fill.hasRemaining()) {
+            fill.put(FILL_CHAR);
+        }
+        this.header = ByteBuffer.allocateDirect(LEADER_SIZE
+                              + 256 * DIR_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.data = ByteBuffer.allocateDirect(DATA_SIZE);
+        this.parts = new ByteBuffer[3];
+        this.tags = new int[256];
+        this.lengths = new int[256];
+        this.nvf = 0;
+        this.nxtmfn = 1;
+        this.filePos = 1 << SHIFT;  // the first record follows the control
+        this.xrfBlockNum = 0;
+        try {
+            mst = new OutputFile(open(dbName + ".mst"),
+                                           mapped ? MST_MAP_CHUNK : 0);
+            xrf = new OutputFile(open(dbName + ".xrf"),
+                                           mapped ? XRF_MAP_CHUNK : 0);
+            newXrfBlock(0);
+            mst.write(0, control);  // zeroed first block
+            flush();
+        } catch (FileAlreadyExistsException faee) {
+            throw new BrumaException("FfiMasterWriter/master file : " + dbName
+                                                       + " already created");
+        } catch (IOException ioe) {
+            throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Opens a new file for reading and writing (a mapped region needs both).
+     */
+    private static FileChannel open(final String path) throws IOException {
+        return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE_NEW,
+                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return true if the charset encodes the ascii chars into their codes
+     */
+    private static boolean isAsciiCompatible(final Charset charset) {
+        final char[] ascii = new char[128];
+
+        for (int idx = 0; idx < ascii.length; idx++) {
+            ascii[idx] = (char)idx;
+        }
+        try {
+            final ByteBuffer out = charset.newEncoder()
+                                          .encode(CharBuffer.wrap(ascii));
+            if (out.remaining() != ascii.length) {
+                return false;
+            }
+            for (int idx = 0; idx < ascii.length; idx++) {
+                if (out.get(idx) != idx) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (CharacterCodingException cce) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the record fields as a new record.
+     * @return mfn of the written record
+     */
+    int writeRecord(final Record rec) throws BrumaException {
+        for (Field fld: rec) {
+            addField(fld.getId(), fld.getContent());
+        }
+        return endRecord();
+    }
+
+    /**
+     * Encodes a field of the current record.
+     */
+    void addField(final int tag,
+                  final CharSequence content) {
+        if (nvf == tags.length) {
+            tags = Arrays.copyOf(tags, nvf * 2);
+            lengths = Arrays.copyOf(lengths, nvf * 2);
+        }
+        final int start = data.position();
+
+        encode(content);
+        tags[nvf] = tag;
+        lengths[nvf++] = data.position() - start;
+    }
+
+    private void encode(final CharSequence content) {
+        final int len = content.length();
+        int idx = 0;
+
+        // the usual contents are only ascii (or latin1) chars
+        if (data.remaining() < len) {
+            grow(len);
+        }
+        while (idx < len) {
+            final char ch = content.charAt(idx);
+
+            if (ch >= fastLimit) {
+                break;
+            }
+            data.put((byte)ch);
+            idx++;
+        }
+        if (idx < len) {
+            final CharBuffer in = CharBuffer.wrap(content, idx, len);
+            CoderResult result;
+
+            encoder.reset();
+            result = encoder.encode(in, data, true);
+            while (result.isOverflow()) {
+                grow(in.remaining() * 4 + 16);
+                result = encoder.encode(in, data, true);
+            }
+            result = encoder.flush(data);
+            while (result.isOverflow()) {
+                grow(16);
+                result = encoder.flush(data);
+            }
+        }
+    }
+
+    private void grow(final int len) {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(
+                 Math.max(data.capacity() * 2, data.position() + len));
+
+        data.flip();
+        buf.put(data);
+        data = buf;
+    }
+
+    /**
+     * Writes the fields added since the last call as a new record.
+     * @return mfn of the written record
+     */
+    int endRecord() throws BrumaException {
+        final int mfn = nxtmfn;
+        final int dataLen = data.position();
+        final int base = LEADER_SIZE + nvf * DIR_ENTRY_SIZE;
+        final int fillLen = (int)(-(base + (long)dataLen) & ((1 << SHIFT) - 1));
+        final int mfrl = base + dataLen + fillLen;
+        final long block = (filePos / MST_BLOCK_SIZE) + 1;
+        final int blockPos = (int)(filePos % MST_BLOCK_SIZE);
+        int pos = 0;
+
+        if (block > MAX_BLOCK) {
+            throw new BrumaException("FfiMasterWriter/" + dbName
+                                          + ": master max size exceeded");
+        }
+        if (header.capacity() < base) {
+            header = ByteBuffer.allocateDirect(base + base / 2)
+                               .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        header.clear();
+        header.putInt(mfn).putInt(mfrl)
+              .putInt(0).putShort((short)0).putShort((short)0) // mfbwb, mfbwp
+              .putInt(base).putShort((short)nvf).putShort((short)0); // active
+        for (int idx = 0; idx < nvf; idx++) {
+            header.putShort((short)tags[idx]).putShort((short)0)
+                  .putInt(pos).putInt(lengths[idx]);
+            pos += lengths[idx];
+        }
+        header.flip();
+        data.flip();
+        fill.clear().limit(fillLen);
+        parts[0] = header;
+        parts[1] = data;
+        parts[2] = fill;
+        try {
+            mst.write(filePos, parts);
+        } catch (IOException ioe) {
+            throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+        }
+        addXrfEntry(mfn, (int)block, blockPos);
+        filePos += mfrl;
+        nxtmfn = mfn + 1;
+        data.clear();
+        nvf = 0;
+
+        return mfn;
+    }
+
+    private void addXrfEntry(final int mfn,
+                             final int block,
+                             final int blockPos) throws BrumaException {
+        final int slot = (mfn - 1) % XRF_ENTRIES;
+
+        xrfBlock.putInt(4 + slot * 4,
+                   (block << (11 - SHIFT)) + ((blockPos + XRF_NEW_FLAG) >>> SHIFT));
+        if (slot == XRF_ENTRIES - 1) {  // full block, the next one is the last
+            xrfBlock.putInt(0, xrfBlockNum + 1);
+            try {
+                writeXrfBlock();
+            } catch (IOException ioe) {
+                throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+            }
+            newXrfBlock(xrfBlockNum + 1);
+        }
+    }
+
+    /**
+     * The last xrf block has its negated number (1 based) as the first entry.
+     */
+    private void newXrfBlock(final int num) {
+        xrfBlockNum = num;
+        xrfBlock.clear();
+        while (xrfBlock.hasRemaining()) {
+            xrfBlock.put((byte)0);
+        }
+        xrfBlock.putInt(0, -(num + 1));
+    }
+
+    /**
+     * @return false if the file ends before the block
+     */
+    private static boolean readBlock(final FileChannel channel,
+                                     final ByteBuffer block,
+                                     final long position) throws IOException {
+        block.clear();
+        while (block.hasRemaining()) {
+            if (channel.read(block, position + block.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeXrfBlock() throws IOException {
+        xrfBlock.clear();
+        xrf.write((long)xrfBlockNum * XRF_BLOCK_SIZE, xrfBlock);
+    }
+
+    private static void writeBlock(final FileChannel channel,
+                                   final ByteBuffer block,
+                                   final long position) throws IOException {
+        block.clear();
+        while (block.hasRemaining()) {
+            channel.write(block, position + block.position());
+        }
+    }
+
+    /**
+     * Writes the control record, the current xrf block and the zeros up to
+     * the end of the last .mst block, so the master can be read (for example
+     * by a checkpoint resume) without closing it.
+     */
+    void flush() throws BrumaException {
+        final int endPos = (int)(filePos % MST_BLOCK_SIZE);
+
+        control.clear();
+        control.putInt(0)                                // ctlmfn
+               .putInt(nxtmfn)
+               .putInt((int)(filePos / MST_BLOCK_SIZE) + 1)   // nxtmfb
+               .putShort((short)(endPos + 1))                 // nxtmfp
+               .putShort((short)(SHIFT << 8))                 // mftype
+               .putInt(0).putInt(0).putInt(0).putInt(0);      // reccnt, mfcxx
+        control.flip();
+        try {
+            mst.write(0, control);
+            if (endPos > 0) {
+                mst.write(filePos, ByteBuffer.allocate(MST_BLOCK_SIZE - endPos));
+            }
+            writeXrfBlock();
+        } catch (IOException ioe) {
+            throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Takes the master files back to their control record. The records
+     * written after the last flush() of an interrupted conversion (and the
+     * preallocated chunk of the mapped mode) are past the control record and
+     * Bruma refuses to open the master. The files are cut
+     * and the last xrf block is rewritten as they were at that flush. Other
+     * masters are not changed.
+     */
+    static void recover(final String dbName) throws BrumaException {
+        final Path mstPath = Paths.get(dbName + ".mst");
+        final Path xrfPath = Paths.get(dbName + ".xrf");
+
+        if (!Files.isRegularFile(mstPath) || !Files.isRegularFile(xrfPath)) {
+            return;
+        }
+        try (FileChannel mst = FileChannel.open(mstPath, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE);
+             FileChannel xrf = FileChannel.open(xrfPath, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            final ByteBuffer control = ByteBuffer.allocate(CONTROL_SIZE)
+                                            .order(ByteOrder.LITTLE_ENDIAN);
+            if (!readBlock(mst, control, 0)
+                              || (control.getShort(14) != (SHIFT << 8))) {
+                return;  // not a master written with these parameters
+            }
+            final int nxtmfn = control.getInt(4);
+            final int nxtmfb = control.getInt(8);
+            final int endPos = control.getShort(12) - 1;
+            final int lastBlock = (nxtmfn - 1) / XRF_ENTRIES;
+
+            if ((nxtmfn <= 0) || (nxtmfb <= 0) || (endPos < 0)) {
+                return;
+            }
+            final long mstEnd = (long)(nxtmfb - 1) * MST_BLOCK_SIZE + endPos;
+            final ByteBuffer zeros = ByteBuffer.allocate(
+                                 (endPos == 0) ? 0 : MST_BLOCK_SIZE - endPos);
+            final long xrfLen = (long)(lastBlock + 1) * XRF_BLOCK_SIZE;
+
+            if (mst.size() > mstEnd + zeros.capacity()) {
+                mst.truncate(mstEnd + zeros.capacity());
+                writeBlock(mst, zeros, mstEnd);
+            }
+            if (xrf.size() >= xrfLen) {  // the last block may be full
+                final ByteBuffer block = ByteBuffer.allocate(XRF_BLOCK_SIZE)
+                                              .order(ByteOrder.LITTLE_ENDIAN);
+                final long blockPos = xrfLen - XRF_BLOCK_SIZE;
+
+                xrf.truncate(xrfLen);
+                readBlock(xrf, block, blockPos);
+                block.putInt(0, -(lastBlock + 1));  // the last block again
+                for (int slot = (nxtmfn - 1) % XRF_ENTRIES; slot < XRF_ENTRIES;
+                                                                     slot++) {
+                    block.putInt(4 + slot * 4, 0);
+                }
+                writeBlock(xrf, block, blockPos);
+            }
+        } catch (IOException ioe) {
+            throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Discards the records after lastMfn: the control record gets the
+     * address of the record lastMfn + 1 (from its xrf pointer) and recover()
+     * cuts the files there, so the master is the one written up to lastMfn.
+     * @return false if the master was not written with these parameters
+     *         (nothing is changed)
+     */
+    static boolean truncate(final String dbName,
+                            final int lastMfn) throws BrumaException {
+        if (lastMfn < 0) {
+            throw new IllegalArgumentException("lastMfn < 0");
+        }
+        try (FileChannel mst = FileChannel.open(Paths.get(dbName + ".mst"),
+                     StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel xrf = FileChannel.open(Paths.get(dbName + ".xrf"),
+                     StandardOpenOption.READ)) {
+            final ByteBuffer control = ByteBuffer.allocate(CONTROL_SIZE)
+                                            .order(ByteOrder.LITTLE_ENDIAN);
+            final ByteBuffer pointer = ByteBuffer.allocate(4)
+                                            .order(ByteOrder.LITTLE_ENDIAN);
+            if (!readBlock(mst, control, 0)
+                              || (control.getShort(14) != (SHIFT << 8))) {
+                return false;
+            }
+            if (control.getInt(4) <= lastMfn + 1) {
+                return true;  // no record after lastMfn
+            }
+            if (!readBlock(xrf, pointer, (long)(lastMfn / XRF_ENTRIES)
+                     * XRF_BLOCK_SIZE + 4 + (lastMfn % XRF_ENTRIES) * 4)) {
+                return false;
+            }
+            // (block << (11 - SHIFT)) + (offset >>> SHIFT) plus flags
+            final int ptr = Math.abs(pointer.getInt(0));
+            final int block = ptr >>> (11 - SHIFT);
+            final int offset = (ptr << SHIFT) & (MST_BLOCK_SIZE - 1);
+
+            if (block <= 0) {
+                return false;
+            }
+            control.putInt(4, lastMfn + 1)                   // nxtmfn
+                   .putInt(8, block)                         // nxtmfb
+                   .putShort(12, (short)(offset + 1));       // nxtmfp
+            writeBlock(mst, control, 0);
+        } catch (IOException ioe) {
+            throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+        }
+        recover(dbName);
+        return true;
+    }
+
+    void close() throws BrumaException {
+        try {
+            flush();
+        } finally {
+            try {
+                // the .mst ends at a block boundary, as written by Bruma
+                try {
+                    mst.close(((filePos + MST_BLOCK_SIZE - 1) / MST_BLOCK_SIZE)
+                                                             * MST_BLOCK_SIZE);
+                } finally {
+                    xrf.close((long)(xrfBlockNum + 1) * XRF_BLOCK_SIZE);
+                }
+            } catch (IOException ioe) {
+                throw new BrumaException("FfiMasterWriter/" + dbName + ": "
+                                                          + ioe.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Input xml files found one directory at a time, so the conversion starts
+ * before the whole tree is listed. The files of a directory are returned in
+ * name order and then its subdirectories (if recursive) also in name order,
+ * so the mfns are the same in every run. Symbolic links to directories are
+ * not followed, so a link cycle can not make the search endless. The files
+ * can also come from a list (manifest file or standard input, one path per
+ * line) in the list order.
+ *
+ * @author Heitor Barbieri
+ */
+class InputFiles implements Iterator<File>, Closeable {
+    private final PathMatcher matcher;   // file name filter or null
+    private final boolean recursive;
+    private final ArrayDeque<Path> dirs; // directories not listed yet
+    private final ArrayDeque<Path> ready; // files of the listed directory
+    private final BufferedReader list;   // file list or null
+    private final Path base;             // directory of the relative paths
+    private File next;
+
+    private InputFiles(final PathMatcher matcher,
+                       final boolean recursive,
+                       final Path dir,
+                       final BufferedReader list,
+                       final Path base) {
+        this.matcher = matcher;
+        this.recursive = recursive;
+        this.dirs = new ArrayDeque<>();
+        this.ready = new ArrayDeque<>();
+        this.list = list;
+        this.base = base;
+        this.next = null;
+        if (dir != null) {
+            dirs.push(dir);
+        }
+    }
+
+    /**
+     * @param dir input directory
+     * @param pattern 'glob:...' or 'regex:...' matched against the file names
+     * @param recursive if true the subdirectories are also searched
+     */
+    static InputFiles fromDirectory(final File dir,
+                                    final String pattern,
+                                    final boolean recursive) {
+        if (dir == null) {
+            throw new IllegalArgumentException("null dir");
+        }
+        if (pattern == null) {
+            throw new IllegalArgumentException("null pattern");
+        }
+        if (!dir.isDirectory()) {
+            throw new IllegalArgumentException(dir + " is not a directory");
+        }
+        return new InputFiles(FileSystems.getDefault().getPathMatcher(pattern),
+                              recursive, dir.toPath(), null, null);
+    }
+
+    /**
+     * @param listFile file with one path per line or "-" for standard input
+     * @param base directory of the relative paths (null for the current one)
+     * @param pattern 'glob:...' or 'regex:...' file name filter or null
+     */
+    static InputFiles fromList(final String listFile,
+                               final File base,
+                               final String pattern) throws IOException {
+        if (listFile == null) {
+            throw new IllegalArgumentException("null listFile");
+        }
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    "-".equals(listFile) ? System.in
+                                         : new FileInputStream(listFile),
+                    StandardCharsets.UTF_8));
+
+        return new InputFiles((pattern == null) ? null
+                           : FileSystems.getDefault().getPathMatcher(pattern),
+                    false, null, reader,
+                    (base == null) ? Paths.get("") : base.toPath());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = (list == null) ? nextInDirs() : nextInList();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final File ret = next;
+
+        next = null;
+        return ret;
+    }
+
+    private File nextInDirs() throws IOException {
+        while (ready.isEmpty()) {
+            if (dirs.isEmpty()) {
+                return null;
+            }
+            listDirectory(dirs.pop());
+        }
+        return ready.poll().toFile();
+    }
+
+    /**
+     * Puts the matching files of the directory in the ready queue and its
+     * subdirectories in front of the directory stack, both in name order.
+     */
+    private void listDirectory(final Path dir) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        final List<Path> subdirs = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                if (matcher.matches(entry.getFileName())
+                                             && Files.isRegularFile(entry)) {
+                    files.add(entry);
+                } else if (recursive && Files.isDirectory(entry,
+                                                  LinkOption.NOFOLLOW_LINKS)) {
+                    subdirs.add(entry);
+                }
+            }
+        }
+        Collections.sort(files);
+        ready.addAll(files);
+        Collections.sort(subdirs, Collections.reverseOrder());
+        for (Path subdir : subdirs) {
+            dirs.push(subdir);
+        }
+    }
+
+    private File nextInList() throws IOException {
+        while (true) {
+            String line = list.readLine();
+
+            if (line == null) {
+                return null;
+            }
+            line = line.trim();
+            if (!line.isEmpty() && (line.charAt(0) != '#')) {
+                final Path path = base.resolve(line);
+
+                if ((matcher == null) || matcher.matches(path.getFileName())) {
+                    if (Files.isRegularFile(path)) {
+                        return path.toFile();
+                    }
+                    System.err.println("WARNING: skipping missing file:" + path);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (list != null) {
+            list.close();
+        }
+    }
+}
@@ -13,9 +13,14 @@ import bruma.master.Master;
 import bruma.master.MasterFactory;
 import bruma.master.Record;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  *
@@ -26,16 +31,83 @@ public class IsisWriter {
     static final int DEFAULT_MAX_FIELD_LEN = 2048;
     static final int MEDLINE_MAX_FIELD_SIZE = 500;
     static final int MAX_FFI_RECORD_SIZE = 1048576;
+    static final int MAX_FIELDS = 32768;
+    // Record length as computed by Record.getRecordLength(encoding, true)
+    static final int FFI_LEADER_SIZE = 24;    // leader (22) + filler (2)
+    static final int FFI_DIR_ENTRY_SIZE = 12; // directory entry (10) + filler (2)
 
     private final MasterFactory factory;
     private final String dbName;
     private final String encoding;
     private final Master master;
-    private final Record record;
-    private final HashSet<Integer> removableFields; // tags of fields that will be removed
-                                              // if number of Fields > max (32k)
+    private final FfiMasterWriter direct; // writes the master if not null
+    private final RecordBuffer record; // fields of the current record
+    private final List<Record> buffer; // saved records not yet written (buffered mode)
+    private final BitSet removableTags;   // tags of fields that will be removed
+                                          // if number of Fields > max (32k)
     private final int maxFldLength;
+    private final Charset charset;
+    private final boolean singleByte; // one byte per char encoding
+    private final boolean utf8;
+    private int recordBytes;  // encoded length of the record field contents
+    private int removableCount; // number of record fields with removable tags
+    private long pruneCount;    // times the removable fields were deleted
     private boolean tooManyFields;
+    private MeshHeadingComposer composer; // builds field 351 (null if not used)
+    private volatile int lastMfn; // mfn of the last record written to the master
+    private ConversionMetrics metrics; // null if not collected
+    private String skippedContent; // content of the last rejected record
+
+    /**
+     * How a new master is written: by Bruma, or by FfiMasterWriter through
+     * its FileChannel or through memory mapped regions.
+     */
+    enum MstOutput { BRUMA, DIRECT, MMAP }
+
+    /**
+     * Action run when all records saved before it are written to the master
+     * (see mark).
+     */
+    interface Marker {
+        void reached(int lastMfn) throws BrumaException;
+    }
+
+    /** A marker waiting in the write-behind queue. */
+    private static class MarkerBatch extends ArrayList<Record> {
+        private static final long serialVersionUID = 1L;
+        private final Marker marker;
+
+        private MarkerBatch(final Marker marker) {
+            this.marker = marker;
+        }
+    }
+
+    /**
+     * The write-behind thread could not write the master. Unlike the errors of
+     * a single record, the conversion can not go on.
+     */
+    static class WriteBehindException extends BrumaException {
+        private static final long serialVersionUID = 1L;
+
+        private WriteBehindException(final String msg) {
+            super(msg);
+        }
+
+        private WriteBehindException(final BrumaException cause) {
+            super("write-behind failed: " + cause.getMessage());
+            initCause(cause);
+        }
+    }
+
+    // write-behind mode (see setWriteBehind)
+    private static final List<Record> END_OF_BATCHES = new ArrayList<>();
+    private BlockingQueue<List<Record>> batches;
+    private Thread batchWriter;
+    private volatile WriteBehindException writeError;
+    private List<Record> batch;
+    private int batchChars;
+    private int maxBatchRecords;
+    private int maxBatchChars;
 
     IsisWriter(final String dbName,
                final String encoding) throws BrumaException {
@@ -46,56 +118,291 @@ public class IsisWriter {
                final String encoding,
                final HashSet<Integer> removableFields,
                final int maxFldLength) throws BrumaException {
+        this(dbName, encoding, removableFields, maxFldLength, false);
+    }
+
+    /**
+     * @param buffered if true, no master file is created and the saved records
+     *        are kept in memory until retrieved by takeRecords(). Used by the
+     *        parallel conversion workers.
+     */
+    IsisWriter(final String dbName,
+               final String encoding,
+               final HashSet<Integer> removableFields,
+               final int maxFldLength,
+               final boolean buffered) throws BrumaException {
+        this(dbName, encoding, removableFields, maxFldLength, buffered, false);
+    }
+
+    /**
+     * @param append if true, the records are appended to an existing master
+     *        instead of a new one
+     */
+    IsisWriter(final String dbName,
+               final String encoding,
+               final HashSet<Integer> removableFields,
+               final int maxFldLength,
+               final boolean buffered,
+               final boolean append) throws BrumaException {
+        this(dbName, encoding, removableFields, maxFldLength, buffered, append,
+                                                              MstOutput.BRUMA);
+    }
+
+    /**
+     * @param output how a new master is written (ignored in buffered or
+     *        append mode, where Bruma is used)
+     */
+    IsisWriter(final String dbName,
+               final String encoding,
+               final HashSet<Integer> removableFields,
+               final int maxFldLength,
+               final boolean buffered,
+               final boolean append,
+               final MstOutput output) throws BrumaException {
         if (dbName == null) {
             throw new IllegalArgumentException();
         }
-        factory = MasterFactory.getInstance(dbName)
-                               .setInMemoryXrf(false)
-                               .setFFI(true)
-                               .setMaxGigaSize(32);
-        if (encoding != null) {
-            factory.setEncoding(encoding);
+        if (buffered) {
+            factory = null;
+            master = null;
+            direct = null;
+            buffer = new ArrayList<>();
+            lastMfn = 0;
+        } else if ((output != MstOutput.BRUMA) && !append) {
+            factory = null;
+            master = null;
+            direct = new FfiMasterWriter(dbName, (encoding == null)
+                                          ? Master.DEFAULT_ENCODING : encoding,
+                                          output == MstOutput.MMAP);
+            buffer = null;
+            lastMfn = 0;
+        } else if (append) {
+            factory = MasterFactory.getInstance(dbName)
+                                   .setInMemoryXrf(false);
+            if (encoding != null) {
+                factory.setEncoding(encoding);
+            }
+            master = factory.open();
+            direct = null;
+            buffer = null;
+            lastMfn = master.getControlRecord().getNxtmfn() - 1;
+        } else {
+            factory = MasterFactory.getInstance(dbName)
+                                   .setInMemoryXrf(false)
+                                   .setFFI(true)
+                                   .setMaxGigaSize(32);
+            if (encoding != null) {
+                factory.setEncoding(encoding);
+            }
+            master = (Master)factory.create();
+            direct = null;
+            buffer = null;
+            lastMfn = 0;
         }
-        master = (Master)factory.create();
-        record = new Record();
-        this.encoding = encoding;
+        record = new RecordBuffer();
+        this.encoding = (encoding == null) ? Master.DEFAULT_ENCODING : encoding;
+        this.charset = Charset.forName(this.encoding);
+        this.singleByte = (charset.newEncoder().maxBytesPerChar() == 1.0f);
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        this.recordBytes = 0;
         this.dbName = dbName;
         this.tooManyFields = false;
-        this.removableFields = removableFields;
+        this.removableTags = new BitSet();
+        for (int rtag: removableFields) {
+            removableTags.set(rtag);
+        }
+        this.removableCount = 0;
+        this.pruneCount = 0;
         this.maxFldLength = maxFldLength;
     }
 
+    /**
+     * Saved records are collected into batches that are appended to the master
+     * by a dedicated thread, so parsing and disk writes overlap.
+     * @param maxRecords a batch is sent when it has this number of records
+     * @param maxChars a batch is sent when its fields have this number of
+     *        characters (about the same number of bytes in the master)
+     * @param queueDepth max number of batches waiting to be written
+     */
+    void setWriteBehind(final int maxRecords,
+                        final int maxChars,
+                        final int queueDepth) {
+        if (buffer != null) {
+            throw new IllegalStateException("null master");
+        }
+        if (batchWriter != null) {
+            throw new IllegalStateException("write-behind already set");
+        }
+        if ((maxRecords <= 0) || (maxChars <= 0) || (queueDepth <= 0)) {
+            throw new IllegalArgumentException("invalid write-behind option");
+        }
+        maxBatchRecords = maxRecords;
+        maxBatchChars = maxChars;
+        batch = new ArrayList<>();
+        batchChars = 0;
+        batches = new ArrayBlockingQueue<>(queueDepth);
+        batchWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "write-behind " + dbName);
+        batchWriter.setDaemon(true); // does not hold the jvm if main aborts
+        batchWriter.start();
+    }
+
+    /**
+     * Writes the batches until END_OF_BATCHES. After an error the queue is
+     * just drained, so the producer never blocks on a full queue.
+     */
+    private void writeBatches() {
+        while (true) {
+            final List<Record> recs;
+
+            try {
+                recs = batches.take();
+            } catch (InterruptedException ie) {
+                if (writeError == null) {
+                    writeError = new WriteBehindException(
+                                                  "write-behind interrupted");
+                }
+                continue;
+            }
+            if (recs == END_OF_BATCHES) {
+                break;
+            }
+            if (writeError == null) {
+                try {
+                    if (recs instanceof MarkerBatch) {
+                        reached(((MarkerBatch)recs).marker);
+                    } else {
+                        for (Record rec: recs) {
+                            write(rec);
+                        }
+                    }
+                } catch (BrumaException ze) {
+                    writeError = new WriteBehindException(ze);
+                }
+            }
+        }
+    }
+
+    private void sendBatch() throws BrumaException {
+        if (writeError != null) {
+            throw writeError;
+        }
+        if (!batch.isEmpty()) {
+            try {
+                batches.put(batch);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BrumaException("write-behind interrupted");
+            }
+            batch = new ArrayList<>();
+            batchChars = 0;
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
     void close() throws BrumaException {
+        if (batchWriter != null) {
+            try {
+                if ((writeError == null) && !batch.isEmpty()) {
+                    batches.put(batch);
+                }
+                // the thread drains the queue even after an error
+                batches.put(END_OF_BATCHES);
+                batchWriter.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BrumaException("write-behind interrupted");
+            } finally {
+                batchWriter = null;
+            }
+        }
         if (master != null) {
             master.close();
         }
+        if (direct != null) {
+            direct.close();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /**
+     * The MeSH heading field (351) is built from the fields 3511 to 3514 while
+     * the record is converted, instead of by the Medline post processing.
+     */
+    void setComposeMeshHeadings(final boolean compose) {
+        composer = compose ? new MeshHeadingComposer(this) : null;
+    }
+
+    boolean isComposingMeshHeadings() {
+        return composer != null;
+    }
+
+    /**
+     * @param metrics counts the written and skipped records (null to stop)
+     */
+    void setMetrics(final ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    ConversionMetrics getMetrics() {
+        return metrics;
     }
 
     void newRecord() throws BrumaException {
-        record.deleteFields();
-        record.setMfn(0);
+        if (composer != null) {
+            composer.reset();
+        }
+        record.clear();
+        recordBytes = 0;
+        removableCount = 0;
     }
 
+    /**
+     * @param field field content. It is copied, so it can be a reused buffer.
+     */
     void addField(final int tag,
-                  final String field) throws BrumaException {
+                  final CharSequence field) throws BrumaException {
         if (tag <= 0) {
             throw new IllegalArgumentException("tag <= 0");
         }
-        final String fld = (field == null) ? "" : field;
+        if (composer == null) {
+            appendField(tag, field);
+        } else {
+            composer.addField(tag, (field == null) ? "" : field.toString());
+        }
+    }
 
-        if (record.getNvf() < 32768) { // max allowed number of fields
-            record.addField(tag, fld);
-        } else if (removableFields.isEmpty()) {
-            tooManyFields = true;
-        } else {  // Try deleting fields (removableFields)
-            for (int rtag: removableFields) {
-                deleteFields(rtag);
+    /**
+     * Adds the field to the record without going through the composer.
+     */
+    void appendField(final int tag,
+                     final CharSequence field) throws BrumaException {
+        final boolean removable = removableTags.get(tag);
+        final CharSequence fld = (field == null) ? "" : field;
+        // Fields with removable tags are never longer than maxFldLength
+        final int len = (removable && (fld.length() > maxFldLength))
+                                                  ? maxFldLength : fld.length();
+
+        if (record.getNvf() >= MAX_FIELDS) { // max allowed number of fields
+            if (removableCount > 0) {  // Try deleting fields (removableFields)
+                deleteFields(removableTags);
+                pruneCount++;
             }
-            if (record.getNvf() < 32768) {
-                record.addField(tag, fld);
-                tooManyFields = false;
-            } else {
-              tooManyFields = true;
+            tooManyFields = (record.getNvf() >= MAX_FIELDS);
+        }
+        if (!tooManyFields) {
+            record.add(tag, fld, len);
+            recordBytes += encodedLength(record.getContent(record.getNvf() - 1));
+            if (removable) {
+                removableCount++;
             }
         }
     }
@@ -104,77 +411,269 @@ public class IsisWriter {
         if (tag <= 0) {
             throw new IllegalArgumentException("tag <= 0");
         }
-        final List<Field> fields = record.getFields();
-        final List<Field> remFields = new ArrayList<>();
+        final BitSet tags = new BitSet();
 
-        for (Field fld: fields) {
-            if (fld.getId() == tag) remFields.add(fld);
-        }
-        for (Field fld: remFields) {
-            fields.remove(fld);
+        tags.set(tag);
+        deleteFields(tags);
+    }
+
+    /**
+     * Deletes all record fields whose tags are in the set in a single pass
+     * over the field list.
+     */
+    private void deleteFields(final BitSet tags) throws BrumaException {
+        final int nvf = record.getNvf();
+
+        for (int idx = 0; idx < nvf; idx++) {
+            final int id = record.getTag(idx);
+
+            if (tags.get(id)) {
+                recordBytes -= encodedLength(record.getContent(idx));
+                if (removableTags.get(id)) {
+                    removableCount--;
+                }
+            }
         }
+        record.delete(tags);
+    }
+
+    /**
+     * @return number of times the removable fields were deleted because a
+     *         record reached the max number of fields
+     */
+    long getPruneCount() {
+        return pruneCount;
     }
 
     void saveRecord(final String fileName) throws BrumaException {
-        if (master == null) {
+        if ((master == null) && (direct == null) && (buffer == null)) {
             throw new IllegalArgumentException("null master");
         }
-        if (record == null) {
-            throw new IllegalArgumentException("null field");
-        }
         if (fileName != null) {
             addField(DEFAULT_FILNAME_FIELD, fileName);
         }
+        if (composer != null) {
+            try {
+                composer.endRecord();
+            } catch (BrumaException ze) {
+                reject(ConversionMetrics.Skip.INVALID);
+                throw ze;
+            }
+        }
 
         if (hasFields()) {
             if (tooManyFields) {
-                record.deleteFields();
-                record.setMfn(0);
-                tooManyFields = false;
+                reject(ConversionMetrics.Skip.TOO_MANY_FIELDS);
                 throw new BrumaException("too many fields");
             } else {
-                if (record.getRecordLength(encoding, true) >= MAX_FFI_RECORD_SIZE) {
-                    trimFields();
+                if (getRecordLength() >= MAX_FFI_RECORD_SIZE) {
+                    reject(ConversionMetrics.Skip.TOO_BIG);
+                    throw new BrumaException("record too big");
                 }
-                if (record.getRecordLength(encoding, true) >= MAX_FFI_RECORD_SIZE) {
-                  throw new BrumaException("record too big");
+                if (buffer != null) {
+                    buffer.add(record.toRecord());
+                } else if (batchWriter != null) {
+                    writeBehind(record.toRecord());
+                } else if (direct != null) {
+                    writeDirect();
+                } else {
+                    write(record.toRecord());
                 }
-                trimFields();
-                master.writeRecord(record);
             }
         }
-        record.deleteFields();
-        record.setMfn(0);
+        newRecord();
     }
 
-    private void trimFields() throws BrumaException {
-      final Record rec = new Record();
-      for (Field fld: record) {
-        rec.addField(fld);
-      }
+    /**
+     * Retrieves the records saved since the last call (buffered mode only).
+     * @return list of saved records in the order they were saved
+     */
+    List<Record> takeRecords() {
+        if (buffer == null) {
+            throw new IllegalStateException("not a buffered writer");
+        }
+        final List<Record> ret = new ArrayList<>(buffer);
+        buffer.clear();
+
+        return ret;
+    }
 
-      record.deleteFields();
+    /**
+     * Appends records (usually taken from a buffered writer) to the master.
+     * @param records records to be written in the list order
+     */
+    void writeRecords(final List<Record> records) throws BrumaException {
+        if (buffer != null) {
+            throw new IllegalArgumentException("null master");
+        }
+        for (Record rec: records) {
+            if (batchWriter == null) {
+                write(rec);
+            } else {
+                writeBehind(rec);
+            }
+        }
+    }
 
-      for (Field fld: rec) {
-          final int id = fld.getId();
-          String content = fld.getContent();
+    /**
+     * Runs the marker after all the records saved so far are written to the
+     * master: at once, or by the write-behind thread when it gets there.
+     */
+    void mark(final Marker marker) throws BrumaException {
+        if (buffer != null) {
+            throw new IllegalArgumentException("null master");
+        }
+        if (batchWriter == null) {
+            reached(marker);
+        } else {
+            sendBatch();
+            try {
+                batches.put(new MarkerBatch(marker));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BrumaException("write-behind interrupted");
+            }
+        }
+    }
 
-          if ((removableFields.contains(id)) && (content.length() > maxFldLength)) {
-            content = content.substring(0, maxFldLength);
-          }
-          record.addField(id, content);
-      }
+    /**
+     * @return mfn of the last record written to the master (0 if none)
+     */
+    int getLastMfn() {
+        return lastMfn;
+    }
+
+    /**
+     * The direct master only writes its control record and xrf block when
+     * flushed, so they are written before the marker looks at the master.
+     */
+    private void reached(final Marker marker) throws BrumaException {
+        if (direct != null) {
+            direct.flush();
+        }
+        marker.reached(lastMfn);
+    }
+
+    private void write(final Record rec) throws BrumaException {
+        if (metrics == null) {
+            lastMfn = (direct == null) ? master.writeRecord(rec)
+                                       : direct.writeRecord(rec);
+        } else {
+            final long start = System.nanoTime();
+
+            lastMfn = (direct == null) ? master.writeRecord(rec)
+                                       : direct.writeRecord(rec);
+            metrics.recordWritten(rec, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Encodes the current record into the direct master without creating a
+     * Record.
+     */
+    private void writeDirect() throws BrumaException {
+        final long start = (metrics == null) ? 0 : System.nanoTime();
+        final int nvf = record.getNvf();
+
+        for (int idx = 0; idx < nvf; idx++) {
+            direct.addField(record.getTag(idx), record.getContent(idx));
+        }
+        lastMfn = direct.endRecord();
+        if (metrics != null) {
+            metrics.recordWritten(record, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Discards the current record, keeping its content for the warnings.
+     */
+    private void reject(final ConversionMetrics.Skip reason)
+                                                        throws BrumaException {
+        skippedContent = record.toRecord().toString();
+        newRecord();
+        tooManyFields = false;
+        if (metrics != null) {
+            metrics.recordSkipped(reason);
+        }
+    }
+
+    private void writeBehind(final Record rec) throws BrumaException {
+        batch.add(rec);
+        for (Field fld: rec) {
+            batchChars += fld.getContent().length();
+        }
+        if ((batch.size() >= maxBatchRecords) || (batchChars >= maxBatchChars)) {
+            sendBatch();
+        }
+    }
+
+    /**
+     * @return the same value of Record.getRecordLength(encoding, true) without
+     *         encoding the fields again
+     */
+    int getRecordLength() {
+        final int len = FFI_LEADER_SIZE + (record.getNvf() * FFI_DIR_ENTRY_SIZE)
+                                                                 + recordBytes;
+
+        return len + (len % 2);  // Record.getFillSize() for shift 0
+    }
+
+    /**
+     * @return the number of bytes of the string in the database encoding
+     */
+    private int encodedLength(final CharSequence str) {
+        final int len = str.length();
+        int ret;
+
+        if (singleByte) {
+            ret = len;
+            for (int idx = 0; idx < len; idx++) {
+                if (Character.isHighSurrogate(str.charAt(idx)) && (idx + 1 < len)
+                        && Character.isLowSurrogate(str.charAt(idx + 1))) {
+                    ret--;  // a surrogate pair is replaced by a single '?'
+                    idx++;
+                }
+            }
+        } else if (utf8) {
+            ret = len;
+            for (int idx = 0; idx < len; idx++) {
+                final char ch = str.charAt(idx);
+
+                if (ch >= 0x80) {
+                    if (ch < 0x800) {
+                        ret += 1;
+                    } else if (Character.isHighSurrogate(ch) && (idx + 1 < len)
+                             && Character.isLowSurrogate(str.charAt(idx + 1))) {
+                        ret += 2;  // 4 bytes for the 2 chars of the pair
+                        idx++;
+                    } else if (!Character.isSurrogate(ch)) {
+                        ret += 2;
+                    } // an unpaired surrogate is replaced by '?'
+                }
+            }
+        } else {
+            ret = str.toString().getBytes(charset).length;
+        }
+        return ret;
     }
 
     boolean hasFields() {
-        return (record == null) ? false : (record.getNvf() > 0);
+        return record.getNvf() > 0;
     }
 
     String getDbName() {
       return dbName;
     }
 
-    String getContent() {
-      return record.toString();
+    String getContent() throws BrumaException {
+      return record.toRecord().toString();
+    }
+
+    /**
+     * @return content of the last record discarded by saveRecord (empty if
+     *         none)
+     */
+    String getSkippedContent() {
+      return (skippedContent == null) ? "" : skippedContent;
     }
 }
@@ -0,0 +1,114 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through memory mapped regions, so the bytes go from the page
+ * cache straight to the parser buffer. Big files are mapped one region at a
+ * time. A mapping is only released when its buffer is garbage collected, so
+ * the regions are small and each one is dropped as soon as it was read.
+ *
+ * @author Heitor Barbieri
+ */
+class MappedFileInputStream extends InputStream {
+    static final int DEFAULT_REGION_SIZE = 16 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int regionSize;
+    private MappedByteBuffer region; // null after the end of file
+    private long regionPos;  // file position of the current region
+
+    MappedFileInputStream(final File in) throws IOException {
+        this(in, DEFAULT_REGION_SIZE);
+    }
+
+    MappedFileInputStream(final File in,
+                          final int regionSize) throws IOException {
+        if (in == null) {
+            throw new IllegalArgumentException("null file");
+        }
+        if (regionSize <= 0) {
+            throw new IllegalArgumentException("regionSize <= 0");
+        }
+        this.file = new RandomAccessFile(in, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.regionSize = regionSize;
+        this.regionPos = 0;
+        this.region = map(0);
+    }
+
+    private MappedByteBuffer map(final long pos) throws IOException {
+        final long len = Math.min(regionSize, size - pos);
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+    }
+
+    /**
+     * @return false if the end of file was reached
+     */
+    private boolean nextRegion() throws IOException {
+        if (region == null) {
+            return false;
+        }
+        if (!region.hasRemaining()) {
+            final long next = regionPos + region.capacity();
+
+            region = null;  // not held while the next one is mapped
+            if (next >= size) {
+                return false;
+            }
+            regionPos = next;
+            region = map(next);
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return nextRegion() ? (region.get() & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(final byte[] buf,
+                   final int off,
+                   final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextRegion()) {
+            return -1;
+        }
+        final int rlen = Math.min(len, region.remaining());
+
+        region.get(buf, off, rlen);
+
+        return rlen;
+    }
+
+    @Override
+    public int available() {
+        return (region == null) ? 0 : region.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        region = null;
+        channel.close();
+        file.close();
+    }
+}
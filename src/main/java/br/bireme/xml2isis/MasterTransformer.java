@@ -0,0 +1,266 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Master;
+import bruma.master.MasterFactory;
+import bruma.master.Record;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites all records of a master into a new master. The input is read in
+ * mfn ranges by many threads (each one with its own open master), the
+ * transform is applied to the active records and the results are written by
+ * the calling thread in mfn order, so the output master is compact and has
+ * no old record versions.
+ *
+ * @author Heitor Barbieri
+ */
+class MasterTransformer {
+    static final int DEFAULT_RANGE_SIZE = 1000;
+
+    /**
+     * Transformation of a single record. It may be called by many threads at
+     * the same time.
+     */
+    interface Transform {
+        /**
+         * @param rec an active input record
+         * @return the output record or null if nothing should be written
+         * @throws BrumaException the record is skipped with a warning
+         */
+        Record transform(Record rec) throws BrumaException;
+    }
+
+    private final String inDb;
+    private final String encoding;
+    private final int threads;
+    private final int rangeSize;
+    private final ThreadLocal<Master> inputs;
+    private final List<Master> allInputs;
+    private boolean warnInactive;
+
+    MasterTransformer(final String inDb,
+                      final String encoding,
+                      final int threads) {
+        this(inDb, encoding, threads, DEFAULT_RANGE_SIZE);
+    }
+
+    MasterTransformer(final String inDb,
+                      final String encoding,
+                      final int threads,
+                      final int rangeSize) {
+        if (inDb == null) {
+            throw new IllegalArgumentException("null inDb");
+        }
+        if (encoding == null) {
+            throw new IllegalArgumentException("null encoding");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        if (rangeSize <= 0) {
+            throw new IllegalArgumentException("rangeSize <= 0");
+        }
+        this.inDb = inDb;
+        this.encoding = encoding;
+        this.threads = threads;
+        this.rangeSize = rangeSize;
+        this.inputs = new ThreadLocal<>();
+        this.allInputs = new ArrayList<>();
+        this.warnInactive = false;
+    }
+
+    /**
+     * @param warn if true, a warning is printed for each input record that is
+     *        not active (they are always skipped)
+     */
+    void setWarnInactive(final boolean warn) {
+        warnInactive = warn;
+    }
+
+    /**
+     * @param outDb output master (created with the input master parameters)
+     * @param keepMfn if true the output records keep the input mfns, if false
+     *        they are numbered sequentially
+     * @return number of written records
+     */
+    int transform(final Transform transform,
+                  final String outDb,
+                  final boolean keepMfn) throws BrumaException {
+        return transform(transform, outDb, keepMfn, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxMfn the input records after this mfn are not read
+     * @return number of written records
+     */
+    int transform(final Transform transform,
+                  final String outDb,
+                  final boolean keepMfn,
+                  final int maxMfn) throws BrumaException {
+        if (transform == null) {
+            throw new IllegalArgumentException("null transform");
+        }
+        if (outDb == null) {
+            throw new IllegalArgumentException("null outDb");
+        }
+        final Master inMst = MasterFactory.getInstance(inDb)
+                                          .setEncoding(encoding)
+                                          .open();
+        final int lastMfn = Math.min(maxMfn,
+                                     inMst.getControlRecord().getNxtmfn() - 1);
+        final Master outMst = (Master)MasterFactory.getInstance(outDb)
+                                          .asAnotherMaster(inMst)
+                                          .create();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final ArrayDeque<Future<List<Record>>> pending = new ArrayDeque<>();
+        final int maxPending = 2 * threads; // limits the records in memory
+        int next = 1;
+        int written = 0;
+
+        inMst.close();
+        try {
+            while ((next <= lastMfn) || !pending.isEmpty()) {
+                while ((next <= lastMfn) && (pending.size() < maxPending)) {
+                    final int last = (int)Math.min((long)next + rangeSize - 1,
+                                                                     lastMfn);
+                    pending.add(pool.submit(newTask(transform, next, last,
+                                                                    keepMfn)));
+                    next = last + 1;
+                }
+                for (Record rec : getResult(pending.remove())) {
+                    outMst.writeRecord(rec);
+                    written++;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            awaitWorkers(pool);  // the inputs are closed after the workers stop
+            outMst.close();
+            closeInputs();
+        }
+
+        return written;
+    }
+
+    private Callable<List<Record>> newTask(final Transform transform,
+                                           final int first,
+                                           final int last,
+                                           final boolean keepMfn) {
+        return new Callable<List<Record>>() {
+            @Override
+            public List<Record> call() throws Exception {
+                final Master mst = getInput();
+                final List<Record> ret = new ArrayList<>();
+
+                for (int mfn = first; mfn <= last; mfn++) {
+                    final Record rec = mst.getRecord(mfn);
+
+                    if (rec.getStatus() == Record.Status.ACTIVE) {
+                        try {
+                            final Record out = transform.transform(rec);
+
+                            if ((out != null) && (out.getNvf() > 0)) {
+                                out.setMfn(keepMfn ? mfn : 0);
+                                ret.add(out);
+                            }
+                        } catch (BrumaException ze) {
+                            System.err.println("WARNING: skipping record mfn:"
+                                              + mfn + " database:" + inDb);
+                        }
+                    } else if (warnInactive) {
+                        System.err.println("WARNING: skipping record mfn:"
+                                              + mfn + " database:" + inDb);
+                    }
+                }
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Moves the master files of 'from' over the ones of 'to'.
+     */
+    static void replaceMaster(final String from,
+                              final String to) throws BrumaException {
+        for (String ext : new String[] {".xrf", ".mst"}) {
+            try {
+                Files.move(Paths.get(from + ext), Paths.get(to + ext),
+                                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ioe) {
+                throw new BrumaException(ioe);
+            }
+        }
+    }
+
+    private static void awaitWorkers(final ExecutorService pool) {
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("WARNING: waiting transform threads");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Master getInput() throws BrumaException {
+        Master mst = inputs.get();
+
+        if (mst == null) {
+            mst = MasterFactory.getInstance(inDb).setEncoding(encoding).open();
+            inputs.set(mst);
+            synchronized (allInputs) {
+                allInputs.add(mst);
+            }
+        }
+        return mst;
+    }
+
+    private void closeInputs() throws BrumaException {
+        synchronized (allInputs) {
+            for (Master mst : allInputs) {
+                mst.close();
+            }
+            allInputs.clear();
+        }
+    }
+
+    private static List<Record> getResult(final Future<List<Record>> future)
+                                                        throws BrumaException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BrumaException("transform interrupted");
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+
+            if (cause instanceof BrumaException) {
+                throw (BrumaException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new BrumaException(cause);
+        }
+    }
+}
@@ -9,8 +9,6 @@ package br.bireme.xml2isis;
 
 import bruma.BrumaException;
 import bruma.master.Field;
-import bruma.master.Master;
-import bruma.master.MasterFactory;
 import bruma.master.Record;
 import java.util.Iterator;
 
@@ -29,6 +27,17 @@ public class Medline {
     public static void convert(final String inDb,
                                final String encoding,
                                final String outDb) throws BrumaException {
+        convert(inDb, encoding, outDb,
+                                    Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of threads reading and converting the records
+     */
+    public static void convert(final String inDb,
+                               final String encoding,
+                               final String outDb,
+                               final int threads) throws BrumaException {
         if (inDb == null) {
             throw new BrumaException("null inDb");
         }
@@ -38,25 +47,20 @@ public class Medline {
         if (outDb == null) {
             throw new BrumaException("null outDb");
         }
-        final Master inMst = MasterFactory.getInstance(inDb)
-                                          .setEncoding(encoding)
-                                          .open();
-        final Master outMst = (Master)MasterFactory.getInstance(outDb)
-                                          .asAnotherMaster(inMst)
-                                          .create();
-        for (Record rec : inMst) {
-            try {
-                saveRecord(parseRecord(rec), outMst);
-            } catch (BrumaException ze) {
-              System.err.println("WARNING: skipping record mfn:" + rec.getMfn() +
-              " database:" + inDb);
-            }
-        }
-        inMst.close();
-        outMst.close();
+        final MasterTransformer transformer =
+                                 new MasterTransformer(inDb, encoding, threads);
+
+        transformer.setWarnInactive(true);
+        transformer.transform(
+            new MasterTransformer.Transform() {
+                @Override
+                public Record transform(final Record rec) throws BrumaException {
+                    return parseRecord(rec);
+                }
+            }, outDb, false);
     }
 
-    private static Record parseRecord(final Record rec) throws BrumaException {
+    static Record parseRecord(final Record rec) throws BrumaException {
         if (rec.getStatus() != Record.Status.ACTIVE) {
             throw new BrumaException("Record is not in active status");
         }
@@ -67,12 +71,13 @@ public class Medline {
         String prefix;
         String sufix;
         String content;
+        boolean nextHeading;
         int fid;
 
         if (it.hasNext()) {
             fld = it.next();
 
-            do {
+            while (true) {  // a 'continue' in a do-while would skip the last field
                 fid = fld.getId();
                 if ((fid != DESCRIPTOR_NAME_MTYN) &&
                     (fid != DESCRIPTOR_NAME) &&
@@ -150,9 +155,11 @@ public class Medline {
                 } else {
                     throw new BrumaException("DescriptorName [attribute] required");
                 }
+                nextHeading = false;
                 while (it.hasNext()) {
                     fld = it.next();
                     if (fld.getId() == DESCRIPTOR_NAME_MTYN) {
+                        nextHeading = true;
                         break;
                     }
                     if (fld.getId() == QUALIFIER_NAME_MTYN) {
@@ -206,28 +213,32 @@ public class Medline {
                 if (sufix == null) {
                     outrec.addField(OUTPUT_TAG, prefix);
                 }
-            } while (it.hasNext());
+                if (!nextHeading) {
+                    break;
+                }
+            }
         }
 
         return outrec;
     }
 
-    private static void saveRecord(final Record rec,
-                                   final Master out) throws BrumaException {
-      if ((rec != null) && (rec.getNvf() > 0)) {
-          out.writeRecord(rec);
-      }
-    }
-
     private static void usage() {
-        System.err.println("usage: Medline <indb> <encoding> <outDb>");
+        System.err.println("usage: Medline <indb> <encoding> <outDb> [threads=<number>]");
         System.exit(1);
     }
 
     public static void main(final String[] args) throws BrumaException {
-        if (args.length != 3) {
+        if ((args.length < 3) || (args.length > 4)) {
             usage();
         }
-        convert(args[0], args[1], args[2]);
+        if (args.length == 4) {
+            if (!args[3].startsWith("threads=")) {
+                usage();
+            }
+            convert(args[0], args[1], args[2],
+                                         Integer.parseInt(args[3].substring(8)));
+        } else {
+            convert(args[0], args[1], args[2]);
+        }
     }
 }
@@ -0,0 +1,183 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+
+/**
+ * Builds the MeSH heading field (351) while the record is being converted, so
+ * the Medline post processing of the whole database is not required. The
+ * temporary fields (3511 to 3514) are consumed as they arrive and the other
+ * fields are passed through, giving the same record of Medline.parseRecord.
+ *
+ * @author Heitor Barbieri
+ */
+class MeshHeadingComposer {
+    private enum Step {
+        OUTSIDE,             // not inside a heading
+        DESCRIPTOR,          // DescriptorName@MajorTopicYN read, waiting DescriptorName
+        DESCRIPTOR_MTYN,     // DescriptorName read, waiting DescriptorName@MajorTopicYN
+        HEADING,             // descriptor read, waiting qualifiers
+        QUALIFIER,           // QualifierName@MajorTopicYN read, waiting QualifierName
+        QUALIFIER_MTYN       // QualifierName read, waiting QualifierName@MajorTopicYN
+    }
+
+    private final IsisWriter writer;
+    private Step step;
+    private String prefix;    // descriptor part of the field
+    private String sufix;     // first read part of the current qualifier
+    private boolean qualified; // the current heading has qualifiers
+    private String error;     // first error of the record
+
+    MeshHeadingComposer(final IsisWriter writer) {
+        if (writer == null) {
+            throw new IllegalArgumentException("null writer");
+        }
+        this.writer = writer;
+        reset();
+    }
+
+    void reset() {
+        step = Step.OUTSIDE;
+        prefix = null;
+        sufix = null;
+        qualified = false;
+        error = null;
+    }
+
+    void addField(final int tag,
+                  final String content) throws BrumaException {
+        if (error != null) {
+            return;  // the record will be skipped
+        }
+        switch (step) {
+            case OUTSIDE:
+                startHeading(tag, content);
+                break;
+            case DESCRIPTOR:
+                if (tag != Medline.DESCRIPTOR_NAME) {
+                    error = "DescriptorName required [id=" + tag + "]";
+                } else if (content.isEmpty() != prefix.isEmpty()) {
+                    error = (content.isEmpty()
+                             ? "DescriptorName attribute required "
+                             : "DescriptorName required ") + " [id=" + tag + "]";
+                } else {
+                    prefix = content + prefix;
+                    step = Step.HEADING;
+                }
+                break;
+            case DESCRIPTOR_MTYN:
+                if (tag != Medline.DESCRIPTOR_NAME_MTYN) {
+                    error = "DescriptorName atttribute required [id=" + tag + "]";
+                } else if (content.isEmpty() != prefix.isEmpty()) {
+                    error = (content.isEmpty()
+                             ? "DescriptorName attribute required "
+                             : "DescriptorName required ") + " [id=" + tag + "]";
+                } else {
+                    prefix = prefix + "^a" + content;
+                    step = Step.HEADING;
+                }
+                break;
+            case HEADING:
+                if (tag == Medline.DESCRIPTOR_NAME_MTYN) {
+                    endHeading();
+                    startHeading(tag, content);
+                } else if (tag == Medline.QUALIFIER_NAME_MTYN) {
+                    sufix = content.isEmpty() ? "" : "^b" + content;
+                    qualified = true;
+                    step = Step.QUALIFIER;
+                } else if (tag == Medline.QUALIFIER_NAME) {
+                    sufix = content.isEmpty() ? "" : "^q" + content;
+                    qualified = true;
+                    step = Step.QUALIFIER_MTYN;
+                } else {
+                    writer.appendField(tag, content);
+                }
+                break;
+            case QUALIFIER:
+                if (tag == Medline.QUALIFIER_NAME) {
+                    writer.appendField(Medline.OUTPUT_TAG, prefix
+                           + (content.isEmpty() ? "" : "^q" + content) + sufix);
+                    step = Step.HEADING;
+                } else {
+                    error = "QualifierName required [id=" + tag + "]";
+                }
+                break;
+            case QUALIFIER_MTYN:
+                if (tag == Medline.QUALIFIER_NAME_MTYN) {
+                    writer.appendField(Medline.OUTPUT_TAG, prefix + sufix
+                                 + (content.isEmpty() ? "" : "^b" + content));
+                    step = Step.HEADING;
+                } else {
+                    error = "QualifierName attribute required[id=" + tag + "]";
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void startHeading(final int tag,
+                              final String content) throws BrumaException {
+        if (tag == Medline.DESCRIPTOR_NAME_MTYN) {
+            prefix = content.isEmpty() ? "" : "^a" + content;
+            qualified = false;
+            step = Step.DESCRIPTOR;
+        } else if (tag == Medline.DESCRIPTOR_NAME) {
+            prefix = content;
+            qualified = false;
+            step = Step.DESCRIPTOR_MTYN;
+        } else if ((tag == Medline.QUALIFIER_NAME_MTYN)
+                                           || (tag == Medline.QUALIFIER_NAME)) {
+            error = "DescriptorName [attribute] required";
+        } else {
+            writer.appendField(tag, content);
+        }
+    }
+
+    private void endHeading() throws BrumaException {
+        if (!qualified) {
+            writer.appendField(Medline.OUTPUT_TAG, prefix);
+        }
+        step = Step.OUTSIDE;
+    }
+
+    /**
+     * Completes the record fields.
+     * @throws BrumaException if the MeSH heading fields are not well formed,
+     *         the record should then be skipped (as Medline.convert does)
+     */
+    void endRecord() throws BrumaException {
+        switch (step) {
+            case HEADING:
+                endHeading();
+                break;
+            case DESCRIPTOR:
+                error = "DescriptorName required";
+                break;
+            case DESCRIPTOR_MTYN:
+                error = "DescriptorName atttribute required";
+                break;
+            case QUALIFIER:
+                error = "QualifierName required";
+                break;
+            case QUALIFIER_MTYN:
+                error = "QualifierName attribute required";
+                break;
+            default:
+                break;
+        }
+        if (error != null) {
+            final String msg = error;
+
+            reset();
+            throw new BrumaException(msg);
+        }
+        reset();
+    }
+}
@@ -0,0 +1,176 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a snapshot of the conversion metrics each 'interval' seconds as a
+ * JSON object per line. Besides the totals, each line has the records and
+ * bytes per second of the last interval and the heap and GC counters.
+ *
+ * @author Heitor Barbieri
+ */
+class MetricsReporter {
+    private final ConversionMetrics metrics;
+    private final Writer out;
+    private final boolean stderr;
+    private final ScheduledExecutorService timer;
+    private long lastTime;     // elapsed time (ms) of the last report
+    private long lastRecords;
+    private long lastBytes;
+
+    /**
+     * @param file output file ('-' for the standard error)
+     * @param interval seconds between two reports
+     */
+    MetricsReporter(final ConversionMetrics metrics,
+                    final String file,
+                    final int interval) throws IOException {
+        if (metrics == null) {
+            throw new IllegalArgumentException("null metrics");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("null file");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval <= 0");
+        }
+        this.metrics = metrics;
+        this.stderr = "-".equals(file);
+        this.out = new BufferedWriter(new OutputStreamWriter(stderr
+                                 ? System.err : new FileOutputStream(file),
+                                 StandardCharsets.UTF_8));
+        this.lastTime = 0;
+        this.lastRecords = 0;
+        this.lastBytes = 0;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable run) {
+                    final Thread thread = new Thread(run, "metrics reporter");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(false);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the timer and writes the final report.
+     */
+    void close() throws IOException {
+        timer.shutdownNow();
+        try {
+            timer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        report(true);
+        if (stderr) {
+            out.flush();
+        } else {
+            out.close();
+        }
+    }
+
+    private synchronized void report(final boolean last) {
+        try {
+            out.write(snapshot(last));
+            out.write('\n');
+            out.flush();
+        } catch (IOException ioe) {
+            System.err.println("WARNING: metrics report failed:" + ioe);
+        }
+    }
+
+    private String snapshot(final boolean last) {
+        final long elapsed = metrics.getElapsedTime();
+        final long records = metrics.getRecordsWritten();
+        final long bytes = metrics.getBytesRead();
+        final long interval = elapsed - lastTime;
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+                                                  .getHeapMemoryUsage();
+        final StringBuilder builder = new StringBuilder(512);
+        long gcCount = 0;
+        long gcTime = 0;
+        boolean first = true;
+
+        for (GarbageCollectorMXBean gc:
+                               ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        builder.append("{\"time\":").append(System.currentTimeMillis())
+               .append(",\"final\":").append(last)
+               .append(",\"elapsedMs\":").append(elapsed)
+               .append(",\"files\":").append(metrics.getFilesConverted())
+               .append(",\"records\":").append(records)
+               .append(",\"recordsPerSec\":")
+                                     .append(rate(records - lastRecords, interval))
+               .append(",\"bytesRead\":").append(bytes)
+               .append(",\"bytesPerSec\":")
+                                     .append(rate(bytes - lastBytes, interval))
+               .append(",\"elementsSeen\":").append(metrics.getElementsSeen())
+               .append(",\"elementsMapped\":").append(metrics.getElementsMapped())
+               .append(",\"fields\":").append(metrics.getFieldsWritten())
+               .append(",\"skippedTooManyFields\":")
+                                      .append(metrics.getSkippedTooManyFields())
+               .append(",\"skippedTooBig\":").append(metrics.getSkippedTooBig())
+               .append(",\"skippedInvalid\":").append(metrics.getSkippedInvalid())
+               .append(",\"parseMs\":").append(metrics.getParseTime())
+               .append(",\"buildMs\":").append(metrics.getBuildTime())
+               .append(",\"writeMs\":").append(metrics.getWriteTime())
+               .append(",\"heapUsed\":").append(heap.getUsed())
+               .append(",\"heapCommitted\":").append(heap.getCommitted())
+               .append(",\"heapMax\":").append(heap.getMax())
+               .append(",\"gcCount\":").append(gcCount)
+               .append(",\"gcMs\":").append(gcTime)
+               .append(",\"fieldsPerTag\":{");
+        for (Map.Entry<Integer, Long> entry:
+                                       metrics.getFieldsPerTag().entrySet()) {
+            if (first) {
+                first = false;
+            } else {
+                builder.append(',');
+            }
+            builder.append('"').append(entry.getKey()).append("\":")
+                   .append(entry.getValue());
+        }
+        builder.append("}}");
+        lastTime = elapsed;
+        lastRecords = records;
+        lastBytes = bytes;
+
+        return builder.toString();
+    }
+
+    private static long rate(final long count,
+                             final long millis) {
+        return (millis <= 0) ? 0 : (count * 1000) / millis;
+    }
+}
@@ -0,0 +1,306 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import br.bireme.utils.TimeString;
+import bruma.BrumaException;
+import bruma.master.Record;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Converts many xml files in parallel. Each worker thread parses one file at a
+ * time with a walker of the shared WalkerFactory and its own buffered
+ * IsisWriter. The records of each file are then written to the output master
+ * by the calling thread in the same order of the input files, so the mfns are
+ * the same of a sequential run. With a split chunk size, each file is also
+ * cut by a RecordSplitter and its chunks are converted in parallel, so a
+ * single big file uses all the threads.
+ *
+ * @author Heitor Barbieri
+ */
+class ParallelConverter {
+    private final WalkerFactory walkers;
+    private final IsisWriter writer;
+    private final String encoding;
+    private final HashSet<Integer> removableFields;
+    private final int maxFldLength;
+    private final int threads;
+    private final ThreadLocal<IsisWriter> buffers;
+    private final List<IsisWriter> allBuffers;
+    private Checkpoint checkpoint;
+    private int splitChunk;
+
+    /** Records of a file or of a chunk, or the end of a split file. */
+    private static final class Pending {
+        final Future<List<Record>> records;  // null at the end of a split file
+        final File file;                     // null for a chunk
+        final CRC32 crc;                     // of the file, null if not used
+
+        Pending(final Future<List<Record>> records,
+                final File file,
+                final CRC32 crc) {
+            this.records = records;
+            this.file = file;
+            this.crc = crc;
+        }
+    }
+
+    ParallelConverter(final WalkerFactory walkers,
+                      final IsisWriter writer,
+                      final String encoding,
+                      final HashSet<Integer> removableFields,
+                      final int maxFldLength,
+                      final int threads) {
+        if (walkers == null) {
+            throw new IllegalArgumentException("null walkers");
+        }
+        if (writer == null) {
+            throw new IllegalArgumentException("null writer");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        this.walkers = walkers;
+        this.writer = writer;
+        this.encoding = encoding;
+        this.removableFields = removableFields;
+        this.maxFldLength = maxFldLength;
+        this.threads = threads;
+        this.buffers = new ThreadLocal<>();
+        this.allBuffers = new ArrayList<>();
+        this.checkpoint = null;
+        this.splitChunk = 0;
+    }
+
+    /**
+     * @param checkpoint journal of the converted files or null
+     */
+    void setCheckpoint(final Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @param splitChunk minimum size in bytes of the chunks of a file (see
+     *        RecordSplitter) or 0 to convert each file by one thread
+     */
+    void setSplitChunk(final int splitChunk) {
+        if (splitChunk < 0) {
+            throw new IllegalArgumentException("splitChunk < 0");
+        }
+        if ((splitChunk > 0) && !walkers.isSplittable()) {
+            throw new IllegalArgumentException(
+                                    "the files can not be split by records");
+        }
+        this.splitChunk = splitChunk;
+    }
+
+    /**
+     * Converts the input files and writes their records to the output master.
+     * @param files input xml files (the mfns follow this order). They are
+     *        taken only when a worker can start converting them.
+     * @param tell prints a message each 'tell' written files
+     * @param time used to print the elapsed time
+     * @return number of converted files
+     */
+    int convert(final Iterator<File> files,
+                final int tell,
+                final TimeString time) throws IOException,
+                                              XMLStreamException,
+                                              BrumaException {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        final int maxPending = 2 * threads; // limits the buffered records
+        RecordSplitter splitter = null;
+        File splitFile = null;
+        CRC32 splitCrc = null;
+        String splitName = null;
+        int cur = 1;
+
+        try {
+            while (true) {
+                while (pending.size() < maxPending) {
+                    if (splitter != null) {
+                        final InputStream chunk = splitter.next();
+
+                        if (chunk == null) {
+                            splitter.close();
+                            splitter = null;
+                            pending.add(new Pending(null, splitFile, splitCrc));
+                        } else {
+                            pending.add(new Pending(pool.submit(
+                                   newTask(chunk, splitName)), null, null));
+                        }
+                    } else if (files.hasNext()) {
+                        final File file = files.next();
+                        final CRC32 crc = (checkpoint == null) ? null
+                                                               : new CRC32();
+                        if (splitChunk > 0) {
+                            splitter = walkers.newSplitter(file, splitChunk,
+                                                                         crc);
+                            splitFile = file;
+                            splitCrc = crc;
+                            splitName = file.getCanonicalPath();
+                        } else {
+                            pending.add(new Pending(pool.submit(
+                                             newTask(file, crc)), file, crc));
+                        }
+                    } else {
+                        break;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                final Pending next = pending.remove();
+
+                if (next.records != null) {
+                    writer.writeRecords(getResult(next.records));
+                }
+                if (next.file == null) {
+                    continue;   // more chunks of the same file
+                }
+                if ((cur % tell) == 0) {
+                    System.out.println("+++ " + cur + " : "
+                       + next.file.getCanonicalPath() + " ("
+                       + time.getTime() + ")");
+                }
+                if (checkpoint != null) {
+                    // set by the task (see Future.get()) or the splitter
+                    checkpoint.fileDone(writer, next.file,
+                                                       next.crc.getValue());
+                }
+                if (writer.getMetrics() != null) {
+                    writer.getMetrics().fileDone();
+                }
+                cur++;
+            }
+        } finally {
+            pool.shutdownNow();
+            if (splitter != null) {
+                splitter.close();
+            }
+        }
+
+        return cur - 1;
+    }
+
+    private Callable<List<Record>> newTask(final File file,
+                                          final CRC32 crc) {
+        assert file != null;
+
+        return new Callable<List<Record>>() {
+            @Override
+            public List<Record> call() throws Exception {
+                final IsisWriter buffer = getBuffer();
+                final StaxXmlWalker walker = walkers.newWalker(file, buffer,
+                                                                          crc);
+
+                try {
+                    walker.convert();
+                } finally {
+                    walker.close();
+                }
+                return buffer.takeRecords();
+            }
+        };
+    }
+
+    private Callable<List<Record>> newTask(final InputStream chunk,
+                                           final String fileName) {
+        assert chunk != null;
+
+        return new Callable<List<Record>>() {
+            @Override
+            public List<Record> call() throws Exception {
+                final IsisWriter buffer = getBuffer();
+                final StaxXmlWalker walker = walkers.newWalker(chunk, fileName,
+                                                                      buffer);
+
+                try {
+                    walker.convert();
+                } finally {
+                    walker.close();
+                }
+                return buffer.takeRecords();
+            }
+        };
+    }
+
+    private IsisWriter getBuffer() throws BrumaException {
+        IsisWriter buffer = buffers.get();
+
+        if (buffer == null) {
+            buffer = new IsisWriter(writer.getDbName(), encoding,
+                                    removableFields, maxFldLength, true);
+            buffer.setComposeMeshHeadings(writer.isComposingMeshHeadings());
+            buffer.setMetrics(writer.getMetrics());
+            buffers.set(buffer);
+            synchronized (allBuffers) {
+                allBuffers.add(buffer);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * @return number of times the worker writers deleted the removable fields
+     *         (see IsisWriter.getPruneCount())
+     */
+    long getPruneCount() {
+        long count = 0;
+
+        synchronized (allBuffers) {
+            for (IsisWriter buffer: allBuffers) {
+                count += buffer.getPruneCount();
+            }
+        }
+        return count;
+    }
+
+    private static List<Record> getResult(final Future<List<Record>> future)
+                                                  throws IOException,
+                                                         XMLStreamException,
+                                                         BrumaException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ie);
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof XMLStreamException) {
+                throw (XMLStreamException)cause;
+            }
+            if (cause instanceof BrumaException) {
+                throw (BrumaException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,625 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Deterministic automaton compiled from a XPathTree. The element names of the
+ * table become symbol ids and the states are built by a subset construction:
+ * a state is the set of tree nodes matched by an element, as the same
+ * element may be matched by many table paths (f ex, the element 'b' of
+ * 'a/b/c' and 'a//b/d'). The transitions are a precomputed table [state,
+ * symbol], with a last column for the names that are not in the table, and
+ * every element without a transition leads to SKIP, where the walker only
+ * counts the depth of the skipped subtree. What the walker does when a state
+ * starts or ends is given by the action flags of the state and of its nodes.
+ * The automaton is immutable and shared by all walkers.
+ * <p>
+ * A descendant ('//name') node can match any element below its father, so a
+ * state also has the descendant nodes in scope, and an element that is not
+ * in the table but can still contain descendant nodes has a scope state. A
+ * '//name' element is not matched again inside itself. The cells of the
+ * positional ('name[n]') nodes depend on the document: they hold the state
+ * of each combination of the positional nodes that match. An element feeds
+ * only one field, so two nodes with tags (or attributes with the same name)
+ * that could match the same element (f ex, 'a/*' and 'a/b', 'a/b' and
+ * 'a/b[2]' or 'a/b' and 'a//b') are rejected when the table is compiled. So
+ * each element is matched once when it starts, without backtracking or
+ * buffering.
+ *
+ * @author Heitor Barbieri
+ */
+class PathAutomaton {
+    /** State of the elements that are not in the table. */
+    static final int SKIP = -1;
+
+    /** The element content is a field or a subfield. */
+    static final int TEXT = 1;
+    /** The element has attributes in the table. */
+    static final int ATTRIBUTES = 2;
+    /** The element writes grouped fields when it ends. */
+    static final int GROUPS = 4;
+    /** The element is at or below the record level (missing fields). */
+    static final int EMPTY_FIELDS = 8;
+    /** The element ends a record. */
+    static final int SAVE_RECORD = 16;
+    /** The element is not in the table but may contain descendant nodes. */
+    static final int SCOPE = 32;
+    /** The element has positional children, so its children are counted. */
+    private static final int POSITIONS = 64;
+
+    /** Max positional nodes matching the same element name in a state. */
+    private static final int MAX_POSITIONAL = 8;
+
+    private static final XPathTree.TreeElement[] NO_NODES =
+                                                  new XPathTree.TreeElement[0];
+
+    /** Element name of a symbol. Names with the same local name are chained. */
+    private static final class Symbol {
+        final String prefix;
+        final int id;
+        final Symbol next;
+
+        Symbol(final String prefix,
+               final int id,
+               final Symbol next) {
+            this.prefix = prefix;
+            this.id = id;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Identity of a state while the automaton is built: the matched nodes,
+     * the descendant nodes in scope and, for a scope state, if the content
+     * of the enclosing element is a field.
+     */
+    private static final class Key {
+        final int[] matched;
+        final int[] scope;
+        final boolean text;
+
+        Key(final int[] matched,
+            final int[] scope,
+            final boolean text) {
+            this.matched = matched;
+            this.scope = scope;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key)obj;
+
+            return (text == other.text)
+                                && Arrays.equals(matched, other.matched)
+                                && Arrays.equals(scope, other.scope);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(matched)
+                             + Arrays.hashCode(scope)) + (text ? 1 : 0);
+        }
+    }
+
+    private final Map<String, Symbol> symbols; // local name -> symbols
+    private final int symbolCount;
+    private final int width;       // symbolCount + 1 (names not in the table)
+    private final int start;       // state before the root element
+    private final int[] next;      // [state * width + symbol] -> state, SKIP
+                                   // or -(index of the branch + 2)
+    private final int[][] branchNodes;   // positional nodes of a cell
+    private final int[][] branchTargets; // state of each set of matching
+                                         // branch nodes (bit i: node i)
+    private final byte[] actions;  // action flags of each state
+    private final XPathTree.TreeElement[][] members; // nodes of each state
+    private final int[][] counted; // positional children of each state
+    private final byte[] nodeActions; // action flags of each node
+    private final int[] column;    // symbol of each node (width - 1 for '*')
+    private final XPathTree.TreeElement[] nodes; // tree node of each id
+
+    PathAutomaton(final XPathTree xpath) {
+        if (xpath == null) {
+            throw new IllegalArgumentException("null xpath");
+        }
+        final XPathTree.TreeElement root = xpath.getRoot();
+        final List<XPathTree.TreeElement> all = new ArrayList<>();
+        final List<Key> keys = new ArrayList<>();
+        final Map<Key, Integer> ids = new HashMap<>();
+        final List<int[]> bnodes = new ArrayList<>();
+        final List<int[]> btargets = new ArrayList<>();
+        int[] table;
+
+        symbols = new HashMap<>();
+        collect(root, all);
+        nodes = new XPathTree.TreeElement[all.size()];
+        for (XPathTree.TreeElement node : all) {
+            nodes[node.getId()] = node;
+        }
+        symbolCount = countSymbols();
+        width = symbolCount + 1;
+        column = new int[nodes.length];
+        nodeActions = new byte[nodes.length];
+        for (XPathTree.TreeElement node : nodes) {
+            column[node.getId()] = (node.isWildcard() || node.isAttribute())
+                                                ? symbolCount : symbol(node);
+            nodeActions[node.getId()] = (byte)flags(node,
+                                                      xpath.getSaveLevel());
+        }
+        start = state(new Key(new int[0], new int[0], false), keys, ids);
+        table = new int[width];
+        for (int st = 0; st < keys.size(); st++) {
+            final Key key = keys.get(st);
+            final List<XPathTree.TreeElement> steps = new ArrayList<>();
+
+            if (st == start) {
+                if (root != null) {
+                    steps.add(root);
+                }
+            } else {
+                for (int id : key.matched) {
+                    steps.addAll(elements(nodes[id]));
+                }
+            }
+            if (table.length < (st + 1) * width) {
+                table = Arrays.copyOf(table, 2 * (st + 1) * width);
+            }
+            for (int col = 0; col < width; col++) {
+                table[st * width + col] = transition(key, steps, col, keys,
+                                                     ids, bnodes, btargets);
+            }
+        }
+        next = Arrays.copyOf(table, keys.size() * width);
+        branchNodes = bnodes.toArray(new int[bnodes.size()][]);
+        branchTargets = btargets.toArray(new int[btargets.size()][]);
+        actions = new byte[keys.size()];
+        members = new XPathTree.TreeElement[keys.size()][];
+        counted = new int[keys.size()][];
+        for (int st = 0; st < keys.size(); st++) {
+            final Key key = keys.get(st);
+            final List<Integer> positional = new ArrayList<>();
+            int flags = 0;
+
+            members[st] = (key.matched.length == 0) ? NO_NODES
+                               : new XPathTree.TreeElement[key.matched.length];
+            for (int idx = 0; idx < key.matched.length; idx++) {
+                members[st][idx] = nodes[key.matched[idx]];
+                flags |= nodeActions[key.matched[idx]];
+                for (XPathTree.TreeElement child :
+                                         elements(nodes[key.matched[idx]])) {
+                    if (child.getPosition() > 0) {
+                        positional.add(child.getId());
+                    }
+                }
+            }
+            if ((key.matched.length == 0) && (st != start)) {
+                flags = (key.text ? TEXT : 0) | SCOPE;
+            }
+            if (!positional.isEmpty()) {
+                flags |= POSITIONS;
+            }
+            actions[st] = (byte)flags;
+            counted[st] = toArray(positional);
+        }
+    }
+
+    /**
+     * @return the state before the root element
+     */
+    int getStart() {
+        return start;
+    }
+
+    /**
+     * Finds the state of an element that starts in the given state.
+     * @param pfx name prefix of the xml element (null or "" if absent)
+     * @param lName local name of the xml element
+     * @param state per document state of the walker (children counts)
+     * @return the next state or SKIP
+     */
+    int next(final int current,
+             final String pfx,
+             final String lName,
+             final XPathTree.State state) {
+        final int col = column(pfx, lName);
+        int ret = next[current * width + col];
+
+        if ((actions[current] & POSITIONS) != 0) {
+            final int[] counts = state.getCounts();
+
+            for (int child : counted[current]) {
+                if ((column[child] == col) || nodes[child].isWildcard()) {
+                    counts[child]++;
+                }
+            }
+        }
+        if (ret < SKIP) {
+            ret = choose(-ret - 2, state);
+        }
+        if ((ret >= 0) && ((actions[ret] & POSITIONS) != 0)) {
+            for (int child : counted[ret]) {
+                state.getCounts()[child] = 0;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the action flags of the state: the flags of all its nodes or
+     *         SCOPE (plus TEXT if the enclosing element is a field)
+     */
+    int getActions(final int state) {
+        return actions[state];
+    }
+
+    /**
+     * @return the action flags of a node of a state (see getNodes)
+     */
+    int getActions(final XPathTree.TreeElement node) {
+        return nodeActions[node.getId()];
+    }
+
+    /**
+     * @return the tree nodes matched by the element of the state, in table
+     *         order (none for the start and the scope states)
+     */
+    XPathTree.TreeElement[] getNodes(final int state) {
+        return members[state];
+    }
+
+    private int column(final String pfx,
+                       final String lName) {
+        Symbol sym = symbols.get(lName);
+
+        if ((sym != null) && (pfx != null) && !pfx.isEmpty()) {
+            while ((sym != null) && !pfx.equals(sym.prefix)) {
+                sym = sym.next;
+            }
+        } else {
+            while ((sym != null) && !sym.prefix.isEmpty()) {
+                sym = sym.next;
+            }
+        }
+        return (sym == null) ? symbolCount : sym.id;
+    }
+
+    private int choose(final int branch,
+                       final XPathTree.State state) {
+        final int[] cands = branchNodes[branch];
+        int mask = 0;
+
+        for (int idx = 0; idx < cands.length; idx++) {
+            if (state.getCounts()[cands[idx]]
+                                       == nodes[cands[idx]].getPosition()) {
+                mask |= 1 << idx;
+            }
+        }
+        return branchTargets[branch][mask];
+    }
+
+    private void collect(final XPathTree.TreeElement current,
+                         final List<XPathTree.TreeElement> all) {
+        if (current != null) {
+            all.add(current);
+            if (!current.isAttribute() && !current.isWildcard()) {
+                addSymbol(current);
+            }
+            if (current.getChildren() != null) {
+                for (XPathTree.TreeElement child :
+                                              current.getChildren().values()) {
+                    collect(child, all);
+                }
+            }
+        }
+    }
+
+    private void addSymbol(final XPathTree.TreeElement elem) {
+        final String lName = elem.getLocalName();
+        final Symbol first = symbols.get(lName);
+
+        for (Symbol sym = first; sym != null; sym = sym.next) {
+            if (sym.prefix.equals(elem.getPrefix())) {
+                return;
+            }
+        }
+        symbols.put(lName, new Symbol(elem.getPrefix(), -1, first));
+    }
+
+    /**
+     * Numbers the symbols.
+     * @return number of symbols
+     */
+    private int countSymbols() {
+        int count = 0;
+
+        for (Map.Entry<String, Symbol> entry : symbols.entrySet()) {
+            Symbol numbered = null;
+
+            for (Symbol sym = entry.getValue(); sym != null; sym = sym.next) {
+                numbered = new Symbol(sym.prefix, count++, numbered);
+            }
+            entry.setValue(numbered);
+        }
+        return count;
+    }
+
+    private int symbol(final XPathTree.TreeElement elem) {
+        Symbol sym = symbols.get(elem.getLocalName());
+
+        while (!sym.prefix.equals(elem.getPrefix())) {
+            sym = sym.next;
+        }
+        return sym.id;
+    }
+
+    private static int flags(final XPathTree.TreeElement node,
+                             final int saveLevel) {
+        int flags = 0;
+        int level = 0;
+
+        for (XPathTree.TreeElement cur = node; cur != null;
+                                                      cur = cur.getFather()) {
+            level++;
+        }
+        if (node.getTag() != XPathTree.NULL_TAG) {
+            flags |= TEXT;
+        }
+        if (node.hasAttribute()) {
+            flags |= ATTRIBUTES;
+        }
+        if (node.getGroups().length > 0) {
+            flags |= GROUPS;
+        }
+        if (level >= saveLevel) {
+            flags |= EMPTY_FIELDS;
+        }
+        if (node.isRecSave()) {
+            flags |= SAVE_RECORD;
+        }
+        return flags;
+    }
+
+    /**
+     * @param key state of the father element
+     * @param steps element children of the nodes of the state
+     * @return the table cell of an element with the symbol col
+     */
+    private int transition(final Key key,
+                           final List<XPathTree.TreeElement> steps,
+                           final int col,
+                           final List<Key> keys,
+                           final Map<Key, Integer> ids,
+                           final List<int[]> bnodes,
+                           final List<int[]> btargets) {
+        final TreeSet<Integer> base = new TreeSet<>();
+        final List<Integer> positional = new ArrayList<>();
+
+        for (XPathTree.TreeElement step : steps) {
+            if (!step.isDescendant() && matches(step, col)) {
+                if (step.getPosition() > 0) {
+                    positional.add(step.getId());
+                } else {
+                    base.add(step.getId());
+                }
+            }
+        }
+        for (int id : key.scope) {
+            if (matches(nodes[id], col)) {
+                base.add(id);
+            }
+        }
+        if (positional.isEmpty()) {
+            return target(key, base, keys, ids);
+        }
+        if (positional.size() > MAX_POSITIONAL) {
+            throw new IllegalArgumentException("too many positional paths:"
+                                     + path(nodes[positional.get(0)]));
+        }
+        final int[] cands = toArray(positional);
+        final int[] targets = new int[1 << cands.length];
+
+        for (int mask = 0; mask < targets.length; mask++) {
+            if (isPossible(cands, mask)) {
+                final TreeSet<Integer> matched = new TreeSet<>(base);
+
+                for (int idx = 0; idx < cands.length; idx++) {
+                    if ((mask & (1 << idx)) != 0) {
+                        matched.add(cands[idx]);
+                    }
+                }
+                targets[mask] = target(key, matched, keys, ids);
+            } else {
+                targets[mask] = SKIP;
+            }
+        }
+        bnodes.add(cands);
+        btargets.add(targets);
+
+        return -(bnodes.size() - 1) - 2;
+    }
+
+    /**
+     * The positional nodes with the same name test (both named or both '*')
+     * count the same elements, so they match together if they have the same
+     * position and never if they have different ones.
+     * @return true if the positional nodes of the mask can be the only ones
+     *         matching an element
+     */
+    private boolean isPossible(final int[] cands,
+                               final int mask) {
+        for (int idx1 = 0; idx1 < cands.length; idx1++) {
+            final XPathTree.TreeElement node1 = nodes[cands[idx1]];
+            final boolean in1 = (mask & (1 << idx1)) != 0;
+
+            for (int idx2 = idx1 + 1; idx2 < cands.length; idx2++) {
+                final XPathTree.TreeElement node2 = nodes[cands[idx2]];
+                final boolean in2 = (mask & (1 << idx2)) != 0;
+
+                if (node1.isWildcard() == node2.isWildcard()) {
+                    if ((node1.getPosition() == node2.getPosition())
+                                                           ? (in1 != in2)
+                                                           : (in1 && in2)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param key state of the father element
+     * @param matched nodes matched by the element
+     * @return the state of the element
+     */
+    private int target(final Key key,
+                       final TreeSet<Integer> matched,
+                       final List<Key> keys,
+                       final Map<Key, Integer> ids) {
+        if (matched.isEmpty()) {
+            if (key.scope.length == 0) {
+                return SKIP;
+            }
+            // not in the table, the enclosing element content goes on
+            return state(new Key(new int[0], key.scope, isText(key)),
+                                                                 keys, ids);
+        }
+        final TreeSet<Integer> scope = new TreeSet<>();
+
+        checkOverlaps(matched);
+        for (int id : key.scope) {
+            if (!matched.contains(id)) { // not matched again inside itself
+                scope.add(id);
+            }
+        }
+        for (int id : matched) {
+            for (XPathTree.TreeElement child : elements(nodes[id])) {
+                if (child.isDescendant()) {
+                    scope.add(child.getId());
+                }
+            }
+        }
+        return state(new Key(toArray(matched), toArray(scope), false),
+                                                                 keys, ids);
+    }
+
+    /**
+     * @return true if the content of the element of the state is a field
+     */
+    private boolean isText(final Key key) {
+        boolean ret = key.text;
+
+        for (int id : key.matched) {
+            ret |= (nodeActions[id] & TEXT) != 0;
+        }
+        return ret;
+    }
+
+    private static int state(final Key key,
+                             final List<Key> keys,
+                             final Map<Key, Integer> ids) {
+        Integer id = ids.get(key);
+
+        if (id == null) {
+            id = keys.size();
+            keys.add(key);
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    private boolean matches(final XPathTree.TreeElement node,
+                            final int col) {
+        return node.isWildcard() || (column[node.getId()] == col);
+    }
+
+    /**
+     * Rejects the nodes matched by the same element that write fields: two
+     * nodes with tags or two attributes with the same name.
+     */
+    private void checkOverlaps(final TreeSet<Integer> matched) {
+        XPathTree.TreeElement field = null;
+
+        for (int id : matched) {
+            final XPathTree.TreeElement node = nodes[id];
+
+            if (node.getTag() != XPathTree.NULL_TAG) {
+                if (field != null) {
+                    throw new IllegalArgumentException("overlapping paths:"
+                                           + path(field) + " " + path(node));
+                }
+                field = node;
+            }
+        }
+        for (int id1 : matched) {
+            if (nodes[id1].hasAttribute()) {
+                for (int id2 : matched.tailSet(id1, false)) {
+                    for (XPathTree.TreeElement attr :
+                                       nodes[id1].getChildren().values()) {
+                        final XPathTree.TreeElement attr2 = attr.isAttribute()
+                                    ? nodes[id2].getChild(attr.getName()) : null;
+                        if (attr2 != null) {
+                            throw new IllegalArgumentException(
+                                        "overlapping paths:" + path(attr)
+                                                        + " " + path(attr2));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String path(final XPathTree.TreeElement node) {
+        final String name = node.getName();
+
+        if (node.getFather() == null) {
+            return "/" + name;
+        }
+        return path(node.getFather())
+                + ((name.startsWith("/") || name.startsWith("@")) ? "" : "/")
+                                                                       + name;
+    }
+
+    /**
+     * @return the element children of the node
+     */
+    private static List<XPathTree.TreeElement> elements(
+                                        final XPathTree.TreeElement current) {
+        final List<XPathTree.TreeElement> ret = new ArrayList<>();
+
+        if (current.getChildren() != null) {
+            for (XPathTree.TreeElement child : current.getChildren().values()) {
+                if (!child.isAttribute()) {
+                    ret.add(child);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static int[] toArray(final Collection<Integer> list) {
+        final int[] ret = new int[list.size()];
+        int idx = 0;
+
+        for (int id : list) {
+            ret[idx++] = id;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,184 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a stream in a separate thread into a bounded queue of chunks, so the
+ * work done by the source stream (for example gzip inflate) overlaps with the
+ * work done by the consumer (the xml parser).
+ *
+ * @author Heitor Barbieri
+ */
+class ReadAheadInputStream extends InputStream {
+    static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    static final int DEFAULT_CHUNKS = 8;
+
+    private static final byte[] EOF = new byte[0];
+
+    private final InputStream source;
+    private final BlockingQueue<byte[]> queue;
+    private final Thread reader;
+    private volatile Throwable error; // of the source, thrown by the consumer
+    private volatile boolean closed;
+    private byte[] chunk;    // current chunk
+    private int chunkLen;    // number of valid bytes of the current chunk
+    private int chunkPos;    // position of the next byte of the current chunk
+
+    ReadAheadInputStream(final InputStream source,
+                         final String name) {
+        this(source, name, DEFAULT_CHUNK_SIZE, DEFAULT_CHUNKS);
+    }
+
+    ReadAheadInputStream(final InputStream source,
+                         final String name,
+                         final int chunkSize,
+                         final int chunks) {
+        if (source == null) {
+            throw new IllegalArgumentException("null source");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize <= 0");
+        }
+        if (chunks <= 0) {
+            throw new IllegalArgumentException("chunks <= 0");
+        }
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<>(chunks);
+        this.error = null;
+        this.closed = false;
+        this.chunk = null;
+        this.chunkLen = 0;
+        this.chunkPos = 0;
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fill(chunkSize);
+            }
+        }, "read-ahead " + name);
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    private void fill(final int chunkSize) {
+        try {
+            while (!closed) {
+                final byte[] buf = new byte[chunkSize];
+                int len = 0;
+
+                while (len < chunkSize) {  // fills the whole chunk
+                    final int read = source.read(buf, len, chunkSize - len);
+                    if (read == -1) {
+                        break;
+                    }
+                    len += read;
+                }
+                if (len > 0) {
+                    queue.put((len == chunkSize) ? buf
+                                                  : Arrays.copyOf(buf, len));
+                }
+                if (len < chunkSize) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            // closed by the consumer
+        } catch (IOException | RuntimeException | Error ex) {
+            error = ex;  // f ex, an OutOfMemoryError of the decompressor
+        } finally {
+            if (!closed) { // the consumer must not wait forever
+                try {
+                    queue.put(EOF);
+                } catch (InterruptedException ie) {
+                    // closed by the consumer
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if there are no more chunks
+     */
+    private boolean nextChunk() throws IOException {
+        if (chunkPos < chunkLen) {
+            return true;
+        }
+        if (chunk == EOF) {
+            return false;
+        }
+        try {
+            chunk = queue.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (chunk == EOF) {
+            if (error instanceof IOException) {
+                throw (IOException)error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException)error;
+            }
+            if (error != null) {
+                throw (Error)error;
+            }
+            return false;
+        }
+        chunkLen = chunk.length;
+        chunkPos = 0;
+
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return nextChunk() ? (chunk[chunkPos++] & 0xFF) : -1;
+    }
+
+    @Override
+    public int read(final byte[] buf,
+                    final int off,
+                    final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        final int rlen = Math.min(len, chunkLen - chunkPos);
+
+        System.arraycopy(chunk, chunkPos, buf, off, rlen);
+        chunkPos += rlen;
+
+        return rlen;
+    }
+
+    @Override
+    public int available() {
+        return chunkLen - chunkPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        queue.clear();
+        source.close();
+    }
+}
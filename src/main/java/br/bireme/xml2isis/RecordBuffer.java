@@ -0,0 +1,114 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Record;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Fields of the record being built, kept in primitive arrays: the tag, the
+ * offset and the length of each field, with all the contents in one
+ * CharArena. The buffer is reused by all records of a writer, so adding a
+ * field creates no objects. The record is converted into a Bruma Record only
+ * when it is saved (see toRecord).
+ *
+ * @author Heitor Barbieri
+ */
+class RecordBuffer {
+    static final int DEFAULT_FIELDS = 256;
+
+    private final CharArena text;  // contents of all fields
+    private int[] tags;
+    private int[] offsets;  // start of each field content in text
+    private int[] lengths;
+    private int nvf;        // number of fields
+
+    RecordBuffer() {
+        text = new CharArena();
+        tags = new int[DEFAULT_FIELDS];
+        offsets = new int[DEFAULT_FIELDS];
+        lengths = new int[DEFAULT_FIELDS];
+        nvf = 0;
+    }
+
+    void clear() {
+        text.clear();
+        nvf = 0;
+    }
+
+    int getNvf() {
+        return nvf;
+    }
+
+    int getTag(final int idx) {
+        assert (idx >= 0) && (idx < nvf);
+        return tags[idx];
+    }
+
+    /**
+     * @return view of the field content. It is changed by the next call of
+     *         getContent().
+     */
+    CharSequence getContent(final int idx) {
+        assert (idx >= 0) && (idx < nvf);
+        return text.slice(offsets[idx], lengths[idx]);
+    }
+
+    /**
+     * Adds a field with the first 'len' chars of the content.
+     */
+    void add(final int tag,
+             final CharSequence field,
+             final int len) {
+        if (nvf == tags.length) {
+            tags = Arrays.copyOf(tags, nvf * 2);
+            offsets = Arrays.copyOf(offsets, nvf * 2);
+            lengths = Arrays.copyOf(lengths, nvf * 2);
+        }
+        tags[nvf] = tag;
+        offsets[nvf] = text.mark();
+        lengths[nvf++] = len;
+        text.append(field, len);
+    }
+
+    /**
+     * Deletes the fields whose tags are in the set, keeping the order of the
+     * other ones.
+     */
+    void delete(final BitSet deleted) {
+        int kept = 0;
+        int pos = 0;
+
+        for (int idx = 0; idx < nvf; idx++) {
+            if (!deleted.get(tags[idx])) {
+                text.moveDown(offsets[idx], pos, lengths[idx]);
+                tags[kept] = tags[idx];
+                offsets[kept] = pos;
+                lengths[kept] = lengths[idx];
+                pos += lengths[idx];
+                kept++;
+            }
+        }
+        nvf = kept;
+        text.reset(pos);
+    }
+
+    /**
+     * @return a new Bruma record with the fields
+     */
+    Record toRecord() throws BrumaException {
+        final Record ret = new Record();
+
+        for (int idx = 0; idx < nvf; idx++) {
+            ret.addField(tags[idx], getContent(idx).toString());
+        }
+        return ret;
+    }
+}
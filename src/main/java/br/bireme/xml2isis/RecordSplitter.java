@@ -0,0 +1,332 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Cuts an xml byte stream into independent documents of whole records, so
+ * the records of a single big file can be converted in parallel. A chunk is
+ * cut only where an element of the record level ends, and it gets the
+ * prolog and the start tags of the open ancestors before its records and
+ * the end tags of those ancestors after them. The scanner only follows the
+ * markup (tags, comments, CDATA sections, processing instructions and the
+ * doctype declaration), so the input encoding must keep the ascii chars in
+ * single bytes (see isSplittable).
+ *
+ * @author Heitor Barbieri
+ */
+class RecordSplitter implements Closeable {
+    static final int READ_SIZE = 64 * 1024;
+
+    private enum Mode { TEXT, LT, START_TAG, END_TAG, BANG, COMMENT, CDATA,
+                        PI, DECL }
+
+    private final InputStream in;
+    private final int recordLevel;  // depth of the record elements (root 1)
+    private final int chunkSize;
+    private final byte[][] ancestors; // start tags of the open ancestors
+    private final byte[][] names;     // names of the open ancestors
+    private byte[] prolog;            // bytes before the root element
+    private byte[] buf;               // current chunk
+    private int len;                  // bytes of buf already read
+    private int pos;                  // next byte of buf to scan
+    private int tagStart;             // position of the current '<'
+    private Mode mode;
+    private byte quote;               // open quote of a tag or 0
+    private int dashes;               // consecutive '-' or ']' bytes
+    private int brackets;             // '[' depth of a declaration
+    private byte last;                // previous byte of a tag
+    private int depth;                // number of open elements
+    private boolean eof;
+
+    /**
+     * @param in xml input (closed by close())
+     * @param recordLevel level of the record element (XPathTree.getSaveLevel)
+     * @param chunkSize minimum number of bytes of a chunk
+     */
+    RecordSplitter(final InputStream in,
+                   final int recordLevel,
+                   final int chunkSize) {
+        if (in == null) {
+            throw new IllegalArgumentException("null in");
+        }
+        if (recordLevel < 2) {
+            throw new IllegalArgumentException("recordLevel < 2");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize <= 0");
+        }
+        this.in = in;
+        this.recordLevel = recordLevel;
+        this.chunkSize = chunkSize;
+        this.ancestors = new byte[recordLevel - 1][];
+        this.names = new byte[recordLevel - 1][];
+        this.prolog = null;
+        this.buf = new byte[chunkSize + READ_SIZE];
+        this.len = 0;
+        this.pos = 0;
+        this.tagStart = 0;
+        this.mode = Mode.TEXT;
+        this.quote = 0;
+        this.depth = 0;
+        this.eof = false;
+    }
+
+    /**
+     * @return true if the records of the table can be converted in chunks
+     *         with the same result: the record element is below the root,
+     *         at a fixed level and not positional, and its ancestors have no
+     *         fields
+     */
+    static boolean isSplittable(final XPathTree xpath) {
+        XPathTree.TreeElement elem = xpath.getRoot();
+
+        if ((elem == null) || (xpath.getSaveLevel() < 2)) {
+            return false;
+        }
+        while (true) {
+            if (elem.isDescendant() || (elem.getPosition() > 0)) {
+                return false;
+            }
+            if (elem.isRecSave()) {
+                return true;
+            }
+            if ((elem.getTag() != XPathTree.NULL_TAG) || elem.hasAttribute()
+                                                  || (elem.getGroups().length > 0)
+                                                  || (elem.getChildren() == null)
+                                                  || (elem.getChildren().size() != 1)) {
+                return false;
+            }
+            elem = elem.getChildren().values().iterator().next();
+        }
+    }
+
+    /**
+     * @return the next chunk as a complete xml document or null at the end
+     *         of the input
+     */
+    InputStream next() throws IOException {
+        if (eof && (pos == len)) {
+            return null;
+        }
+        while (true) {
+            if (pos == len) {
+                if (!fill()) {  // the last chunk ends with the input
+                    final InputStream ret = new ByteArrayInputStream(buf, 0, len);
+
+                    len = 0;
+                    pos = 0;
+                    return ret;
+                }
+            }
+            if (scan()) {
+                return cut();
+            }
+        }
+    }
+
+    /**
+     * @return false if there is nothing more to read
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (buf.length - len < READ_SIZE) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + READ_SIZE));
+        }
+        final int read = in.read(buf, len, buf.length - len);
+
+        if (read == -1) {
+            eof = true;
+            return false;
+        }
+        len += read;
+        return true;
+    }
+
+    /**
+     * Scans the read bytes.
+     * @return true if the chunk can be cut after the byte before pos
+     */
+    private boolean scan() {
+        while (pos < len) {
+            final byte ch = buf[pos++];
+
+            switch (mode) {
+                case TEXT:
+                    if (ch == '<') {
+                        tagStart = pos - 1;
+                        mode = Mode.LT;
+                    }
+                    break;
+                case LT:
+                    if (ch == '/') {
+                        mode = Mode.END_TAG;
+                    } else if (ch == '?') {
+                        last = 0;
+                        mode = Mode.PI;
+                    } else if (ch == '!') {
+                        mode = Mode.BANG;
+                    } else {
+                        last = ch;
+                        quote = 0;
+                        mode = Mode.START_TAG;
+                    }
+                    break;
+                case START_TAG:
+                    if (quote != 0) {
+                        if (ch == quote) {
+                            quote = 0;
+                        }
+                    } else if ((ch == '"') || (ch == '\'')) {
+                        quote = ch;
+                    } else if (ch == '>') {
+                        mode = Mode.TEXT;
+                        if (last == '/') {  // empty element
+                            if ((depth == recordLevel - 1)
+                                                      && (pos >= chunkSize)) {
+                                return true;
+                            }
+                        } else {
+                            startElement();
+                        }
+                        break;
+                    }
+                    last = ch;
+                    break;
+                case END_TAG:
+                    if (ch == '>') {
+                        mode = Mode.TEXT;
+                        depth--;
+                        if ((depth == recordLevel - 1)
+                                                      && (pos >= chunkSize)) {
+                            return true;
+                        }
+                    }
+                    break;
+                case BANG:
+                    dashes = 0;
+                    brackets = 0;
+                    quote = 0;
+                    if (ch == '-') {
+                        mode = Mode.COMMENT;
+                    } else if (ch == '[') {
+                        mode = Mode.CDATA;
+                    } else {
+                        mode = Mode.DECL;
+                    }
+                    break;
+                case COMMENT:  // '<!-' was read, ends at '-->'
+                    if ((ch == '>') && (dashes >= 2)) {
+                        mode = Mode.TEXT;
+                    }
+                    dashes = (ch == '-') ? dashes + 1 : 0;
+                    break;
+                case CDATA:    // '<![' was read, ends at ']]>'
+                    if ((ch == '>') && (dashes >= 2)) {
+                        mode = Mode.TEXT;
+                    }
+                    dashes = (ch == ']') ? dashes + 1 : 0;
+                    break;
+                case PI:
+                    if ((ch == '>') && (last == '?')) {
+                        mode = Mode.TEXT;
+                    }
+                    last = ch;
+                    break;
+                default:       // DECL: doctype with an internal subset
+                    if (quote != 0) {
+                        if (ch == quote) {
+                            quote = 0;
+                        }
+                    } else if ((ch == '"') || (ch == '\'')) {
+                        quote = ch;
+                    } else if (ch == '[') {
+                        brackets++;
+                    } else if (ch == ']') {
+                        brackets--;
+                    } else if ((ch == '>') && (brackets <= 0)) {
+                        mode = Mode.TEXT;
+                    }
+                    break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps the start tags of the record ancestors.
+     */
+    private void startElement() {
+        if (depth == 0) {
+            prolog = Arrays.copyOf(buf, tagStart);
+        }
+        depth++;
+        if (depth < recordLevel) {
+            int end = tagStart + 1;
+
+            while ((end < pos) && (buf[end] != '>') && (buf[end] != '/')
+                                                  && (buf[end] > ' ')) {
+                end++;
+            }
+            ancestors[depth - 1] = Arrays.copyOfRange(buf, tagStart, pos);
+            names[depth - 1] = Arrays.copyOfRange(buf, tagStart + 1, end);
+        }
+    }
+
+    /**
+     * Ends the current chunk at pos with the end tags of the ancestors and
+     * starts the next one with the prolog, the ancestor start tags and the
+     * bytes read after pos.
+     */
+    private InputStream cut() {
+        final byte[] old = buf;
+        final int rest = len - pos;
+        int prefix = prolog.length;
+        int suffix = 0;
+
+        for (int idx = 0; idx < depth; idx++) {
+            prefix += ancestors[idx].length;
+            suffix += names[idx].length + 3;
+        }
+        buf = new byte[Math.max(old.length, prefix + rest + READ_SIZE)];
+        System.arraycopy(prolog, 0, buf, 0, prolog.length);
+        len = prolog.length;
+        for (int idx = 0; idx < depth; idx++) {
+            System.arraycopy(ancestors[idx], 0, buf, len, ancestors[idx].length);
+            len += ancestors[idx].length;
+        }
+        System.arraycopy(old, pos, buf, len, rest);
+
+        final byte[] chunk = (pos + suffix <= old.length) ? old
+                                             : Arrays.copyOf(old, pos + suffix);
+        int size = pos;
+
+        pos = len;
+        len += rest;
+        for (int idx = depth - 1; idx >= 0; idx--) {
+            chunk[size++] = '<';
+            chunk[size++] = '/';
+            System.arraycopy(names[idx], 0, chunk, size, names[idx].length);
+            size += names[idx].length;
+            chunk[size++] = '>';
+        }
+        return new ByteArrayInputStream(chunk, 0, size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
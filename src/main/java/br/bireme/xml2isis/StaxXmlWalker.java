@@ -14,15 +14,20 @@
 package br.bireme.xml2isis;
 
 import bruma.BrumaException;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.Map;
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLInputFactory;
+import java.util.Arrays;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
@@ -36,60 +41,292 @@ class StaxXmlWalker {
     static final String DEFAULT_EMPTY_FIELD = "";
 
     static final int REPLACE_CHAR = 512;
+    static final int BYTE_BUFFER_SIZE = 1024 * 1024;
+    static final int MAGIC_SIZE = 4;
+
+    /**
+     * How the input file is handed to the parser.
+     * CHARS: decoded by an InputStreamReader (required by the '&amp;' rewriting)
+     * BYTES: raw bytes through a big buffer, decoded by the parser
+     * MMAP: raw bytes read from memory mapped regions, decoded by the parser
+     * In all modes compressed files are decompressed on the fly.
+     */
+    enum InputMode { CHARS, BYTES, MMAP }
 
     private XMLStreamReader parser;
+    private Closeable input;
     private XPathTree xpath;
+    private XPathTree.State state;
     private IsisWriter writer;
     private String fileName;
     private boolean createMissFld;
     private boolean createFileNameFld;
     private boolean allowSubElems;
+    private boolean nativeEntities;
+    private ConversionMetrics metrics; // null if not collected
+    private long elementsSeen;   // counts not yet added to the metrics
+    private long elementsMapped;
+    private long parseNanos;
+    private long buildNanos;
+    private long mark;           // end of the last parser.next() call
+
+    /**
+     * @param factory creates the xml parser and holds the conversion options
+     *        (see WalkerFactory)
+     */
+    StaxXmlWalker(final File xml,
+                  final IsisWriter writer,
+                  final WalkerFactory factory) throws XMLStreamException,
+                                                      IOException {
+        this(xml, writer, factory, null);
+    }
 
+    /**
+     * @param crc gets the bytes of the file, it has the CRC32 of the whole
+     *        file after close() (may be null)
+     */
     StaxXmlWalker(final File xml,
-                  final XPathTree xpath,
                   final IsisWriter writer,
-                  final boolean createMissFld,
-                  final boolean allowSubElems,   // include subelements inside a element, f ex, <abstract>xxx <b>cc</b> yyy</abstract>
-                  final String encoding) throws XMLStreamException,
-                                                IOException {
-        if (xml == null) {
+                  final WalkerFactory factory,
+                  final Checksum crc) throws XMLStreamException, IOException {
+        this(open(xml, factory, crc), xml.getCanonicalPath(), writer, factory);
+    }
+
+    /**
+     * @param in xml document already opened (closed by close())
+     * @param fileName name of the file the document comes from
+     */
+    StaxXmlWalker(final InputStream in,
+                  final String fileName,
+                  final IsisWriter writer,
+                  final WalkerFactory factory) throws XMLStreamException,
+                                                      IOException {
+        if (in == null) {
             throw new IllegalArgumentException();
         }
-        if (xpath == null) {
+        if (writer == null) {
             throw new IllegalArgumentException();
         }
-        if (writer == null) {
+        if (factory == null) {
             throw new IllegalArgumentException();
         }
-        final String enc = (encoding == null)
-                            ? System.getProperty("file.encoding") : encoding;
-        //System.setProperty("javax.xml.stream.XMLInputFactory","com.bea.xml.stream.MXParserFactory");
-
-        final XMLInputFactory factory = XMLInputFactory.newInstance();
-
-        factory.setProperty("javax.xml.stream.isReplacingEntityReferences",//XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
-                                                                 //Boolean.TRUE);
-                                                                 Boolean.FALSE);
-        factory.setProperty("javax.xml.stream.isCoalescing", Boolean.TRUE);
-/*System.out.println("supported=" + factory.isPropertySupported(
-                            XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES));*/
-        this.xpath = xpath;
+        final String enc = factory.getEncoding();
+
+        this.xpath = factory.getXPath();
+        this.state = factory.getState();
         this.writer = writer;
-        /*this.parser = factory.createXMLStreamReader(
-                                                 new FileInputStream(xml), enc);*/
-        this.parser = factory.createXMLStreamReader(
-                new ReplaceBufferedReader(
-                       new InputStreamReader(new FileInputStream(xml), enc)));
-        this.fileName = xml.getCanonicalPath();
-        this.createMissFld = createMissFld;
-        this.allowSubElems = allowSubElems;
+        this.metrics = factory.getMetrics();
+        this.nativeEntities = factory.isNativeEntities();
+
+        try {
+            switch (factory.getInputMode()) {
+                case BYTES:
+                case MMAP:
+                    this.input = in;
+                    this.parser = factory.createReader(in, enc);
+                    break;
+                default:
+                    final Reader reader = nativeEntities
+                        ? new InputStreamReader(in, enc)
+                        : new ReplaceBufferedReader(new InputStreamReader(in, enc));
+                    this.input = reader;
+                    this.parser = factory.createReader(reader);
+                    break;
+            }
+        } catch (XMLStreamException | IOException | RuntimeException ex) {
+            try {
+                in.close(); // also stops the zstd process
+            } catch (IOException ioe) {
+                ex.addSuppressed(ioe);
+            }
+            throw ex;
+        }
+        this.fileName = fileName;
+        this.createMissFld = factory.isCreatingMissingFields();
+        this.allowSubElems = factory.isAllowingSubElements();
         this.createFileNameFld = false;
     }
 
-    void close() throws XMLStreamException {
+    private static InputStream open(final File xml,
+                                    final WalkerFactory factory,
+                                    final Checksum crc) throws IOException {
+        if ((xml == null) || (factory == null)) {
+            throw new IllegalArgumentException();
+        }
+        return openInput(xml, factory.getInputMode() == InputMode.MMAP,
+                                                   factory.getMetrics(), crc);
+    }
+
+    /**
+     * Opens the xml file. Gzip and zstd compressed files are detected by their
+     * magic bytes and decompressed on the fly: gzip in a read ahead thread and
+     * zstd by the external 'zstd' command.
+     * @param mapped if true the file is read through memory mapped regions
+     */
+    static InputStream openInput(final File xml,
+                                 final boolean mapped) throws IOException {
+        return openInput(xml, mapped, null, null);
+    }
+
+    /**
+     * @param metrics counts the bytes read from the file (may be null)
+     * @param crc gets the bytes of the file (may be null). The rest of the
+     *        file is read when the stream is closed, so then it has the
+     *        CRC32 of the whole file.
+     */
+    static InputStream openInput(final File xml,
+                                 final boolean mapped,
+                                 final ConversionMetrics metrics,
+                                 final Checksum crc) throws IOException {
+        final InputStream file = mapped ? new MappedFileInputStream(xml)
+                                        : new FileInputStream(xml);
+        final InputStream raw = (crc == null) ? file : checkBytes(file, crc);
+        final InputStream in = new BufferedInputStream((metrics == null) ? raw
+              : countBytes(raw, metrics), mapped ? MAGIC_SIZE : BYTE_BUFFER_SIZE);
+        final byte[] magic = new byte[MAGIC_SIZE];
+        int len = 0;
+        int read;
+
+        in.mark(MAGIC_SIZE);
+        while (len < MAGIC_SIZE) {
+            read = in.read(magic, len, MAGIC_SIZE - len);
+            if (read == -1) {
+                break;
+            }
+            len += read;
+        }
+        in.reset();
+
+        if ((len >= 2) && ((magic[0] & 0xFF) == 0x1F)
+                                             && ((magic[1] & 0xFF) == 0x8B)) {
+            return new ReadAheadInputStream(
+                    new GZIPInputStream(in, BYTE_BUFFER_SIZE), xml.getName());
+        }
+        if ((len == MAGIC_SIZE) && ((magic[0] & 0xFF) == 0x28)
+                                && ((magic[1] & 0xFF) == 0xB5)
+                                && ((magic[2] & 0xFF) == 0x2F)
+                                && ((magic[3] & 0xFF) == 0xFD)) {
+            in.close();  // read to the end if crc is not null
+            if (metrics != null) { // read by the zstd process
+                metrics.addBytesRead(xml.length());
+            }
+            return openZstd(xml);
+        }
+        return in;
+    }
+
+    private static InputStream countBytes(final InputStream in,
+                                          final ConversionMetrics metrics) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int ret = super.read();
+
+                if (ret != -1) {
+                    metrics.addBytesRead(1);
+                }
+                return ret;
+            }
+
+            @Override
+            public int read(final byte[] buf,
+                            final int off,
+                            final int len) throws IOException {
+                final int ret = super.read(buf, off, len);
+
+                if (ret > 0) {
+                    metrics.addBytesRead(ret);
+                }
+                return ret;
+            }
+
+            @Override
+            public long skip(final long len) throws IOException {
+                final long ret = super.skip(len);
+
+                metrics.addBytesRead(ret);
+                return ret;
+            }
+        };
+    }
+
+    private static InputStream checkBytes(final InputStream in,
+                                          final Checksum crc) {
+        return new CheckedInputStream(in, crc) {
+            private boolean closed = false;
+
+            /**
+             * The parser stops at the root end tag.
+             */
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    final byte[] buf = new byte[BYTE_BUFFER_SIZE];
+
+                    while (read(buf) != -1) {
+                        // added to the checksum
+                    }
+                } finally {
+                    super.close();
+                }
+            }
+        };
+    }
+
+    private static InputStream openZstd(final File xml) throws IOException {
+        final Process process;
+
+        try {
+            process = new ProcessBuilder("zstd", "-dcq", xml.getPath())
+                                 .redirectError(ProcessBuilder.Redirect.INHERIT)
+                                 .start();
+        } catch (IOException ioe) {
+            throw new IOException("zstd command is required to read " + xml,
+                                                                          ioe);
+        }
+        return new FilterInputStream(new BufferedInputStream(
+                           process.getInputStream(), BYTE_BUFFER_SIZE)) {
+            /**
+             * Fails if zstd could not decompress the whole file (corrupt or
+             * truncated input). The parser stops at the root end tag, so the
+             * rest of the output is read first to let zstd end.
+             */
+            @Override
+            public void close() throws IOException {
+                final byte[] buf = new byte[BYTE_BUFFER_SIZE];
+                final int status;
+
+                try {
+                    while (in.read(buf) != -1) {
+                        // discarded
+                    }
+                    status = process.waitFor();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted reading " + xml, ie);
+                } finally {
+                    super.close();
+                    process.destroy();  // nothing if it has ended
+                }
+                if (status != 0) {
+                    throw new IOException("zstd failed to decompress " + xml
+                                                  + " exit status:" + status);
+                }
+            }
+        };
+    }
+
+    void close() throws XMLStreamException, IOException {
         if (parser != null) {
             parser.close();
         }
+        if (input != null) { // the parser does not close the input source
+            input.close();
+        }
     }
 
     void createFileNameField(final boolean opt) {
@@ -97,167 +334,147 @@ class StaxXmlWalker {
     }
 
     void convert() throws XMLStreamException, BrumaException {
-        String name;
+        final PathAutomaton automaton = xpath.getAutomaton();
         final XPathTree.TreeElement root = xpath.getRoot();
-        final int saveLevel = xpath.getSaveLevel();
-        XPathTree.TreeElement current = null;
-        XPathTree.TreeElement aux;
+        final int start = automaton.getStart();
+        final CharArena text = state.content(); // content of current
+        XPathTree.TreeElement[] nodes;
+        int[] stack = new int[16]; // states of the open elements
+        int depth = 0;
+        int current = start;
+        int actions = 0;  // action flags of current
+        int skipped = 0;  // open elements of a skipped subtree
         int eventType;
-        int curLevel = 0; // root level is 1
-        int skipLevel = Integer.MAX_VALUE;
         boolean hasNext = true;
-        StringBuilder builder;
-        String buffer;
-        QName qname;
+        String localName;
         String prefix;
 
         writer.newRecord();
+        mark = System.nanoTime();
 
         while (hasNext) {
-            eventType = parser.next();
+            eventType = (metrics == null) ? parser.next() : timedNext();
 
             switch (eventType) {
                 case XMLStreamConstants.START_ELEMENT:
-                    curLevel++;
-                    if (curLevel < skipLevel) {
-                        qname = parser.getName();
-                        prefix = qname.getPrefix();
-                        name = (prefix.isEmpty() ?  "" : (prefix + ":"))
-                                                         + qname.getLocalPart();
-                        //name = parser.getLocalName();
-                        if (current == null) {  // root document node
-                            if (root.getName().compareTo(name) == 0) {
-                                current = root;
-                                if (current.hasAttribute()) {
-                                    parseAttribute(current);
-                                }
-                                xpath.resetTreeVisited(current); // reset current children
-                                current.setVisited(true);
-                            } else {
-                                createEmptyFields(root);
-                                hasNext = false;
+                    elementsSeen++;
+                    if (skipped > 0) {
+                        if (allowSubElems) {
+                            text.append('<').append(parser.getLocalName())
+                                .append('>');
+                        }
+                        skipped++;
+                        break;
+                    }
+                    localName = parser.getLocalName();
+                    prefix = parser.getPrefix();
+                    final int next = automaton.next(current, prefix, localName,
+                                                                       state);
+
+                    if (next == PathAutomaton.SKIP) {
+                        if (current == start) {  // not the root document node
+                            createEmptyFields(root);
+                            hasNext = false;
+                        } else {                 // no' que nao interessa
+                            appendStartTag(text, prefix, localName);
+                            skipped = 1;
+                        }
+                        break;
+                    }
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = current;
+                    actions = automaton.getActions(next);
+                    if ((actions & PathAutomaton.SCOPE) != 0) {
+                        // not in the table, but may have descendant nodes
+                        appendStartTag(text, prefix, localName);
+                        current = next;
+                        break;
+                    }
+                    elementsMapped++;
+                    nodes = automaton.getNodes(next);
+                    for (XPathTree.TreeElement node : nodes) {
+                        final int flags = automaton.getActions(node);
+
+                        if (current == start) {  // root document node
+                            if ((flags & PathAutomaton.ATTRIBUTES) != 0) {
+                                parseAttribute(node);
                             }
-                        } else { // it is a child node
-                            aux = current.getChild(name);
-                            if (aux == null) { // no' que nao interessa
-                                if (allowSubElems) {
-                                    builder = current.getContent();
-                                    if (builder == null) {
-                                        builder = new StringBuilder();
-                                        current.setContent(builder);
-                                    }
-                                    builder.append("<" + name + ">");
-                                }
-                                skipLevel = curLevel + 1;
-                            } else {
-                                current = aux;
-                                xpath.resetTreeVisited(current); // reset current children
-                                if (current.hasAttribute()) {
-                                    parseAttribute(current);
-                                }
-                                current.setVisited(true);
+                            state.resetTreeVisited(node); // reset children
+                        } else {
+                            state.resetTreeVisited(node); // reset children
+                            if ((flags & PathAutomaton.ATTRIBUTES) != 0) {
+                                parseAttribute(node);
                             }
                         }
-                    } else if (allowSubElems) {
-                        builder = current.getContent();
-                        if (builder == null) {
-                            builder = new StringBuilder();
-                            current.setContent(builder);
-                        }
-                        builder.append("<" + parser.getLocalName() + ">");
+                        state.setVisited(node);
+                        state.openContent(node);
                     }
+                    current = next;
                     break;
 
-                /* Parser is not generating ATTRIBUTE event */
-                /*case XMLStreamConstants.ATTRIBUTE:
-                    curLevel++;
-                    if (curLevel < skipLevel) {
-                        parseAttribute(current);
-                    }
-                    curLevel--;
-                    break;*/
-
                 case XMLStreamConstants.CDATA:
                 case XMLStreamConstants.CHARACTERS:
-                    curLevel++;
-                    if (curLevel < skipLevel) {
-                        if (current.getTag() != XPathTree.NULL_TAG) {
-                            buffer = parser.getText();
-                            if (!buffer.isEmpty()) {
-                                builder = current.getContent();
-                                if (builder == null) {
-                                    builder = new StringBuilder();
-                                    current.setContent(builder);
-                                }
-                                //builder.append(buffer);
-                                builder.append(buffer.replace(
-                                                     (char)REPLACE_CHAR, '&'));
-                            }
-                        }
-                    } else if (allowSubElems) {
-                        if (current.getTag() != XPathTree.NULL_TAG) {
-                            buffer = parser.getText();
-                            if (!buffer.isEmpty()) {
-                                builder = current.getContent();
-                                if (builder == null) {
-                                    builder = new StringBuilder();
-                                    current.setContent(builder);
-                                }
-                                builder.append(buffer.replace(
-                                        (char) REPLACE_CHAR, '&'));
-                            }
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    if (((actions & PathAutomaton.TEXT) != 0) && (allowSubElems
+                           || ((skipped == 0)
+                               && ((actions & PathAutomaton.SCOPE) == 0)))) {
+                        if (eventType == XMLStreamConstants.ENTITY_REFERENCE) {
+                            // keeps the entity reference as in the xml file
+                            text.append('&').append(parser.getLocalName())
+                                .append(';');
+                        } else {
+                            appendText(text);
                         }
                     }
-                    curLevel--;
                     break;
 
                 case XMLStreamConstants.END_ELEMENT:
-                    buffer = parser.getLocalName();
-                    if (curLevel < skipLevel) {
-                        if (skipLevel == Integer.MAX_VALUE) {
-                            saveContent(current);
-                            if (curLevel >= saveLevel) {
-                                createEmptyFields(current);
-                            }
-                            if (current.isRecSave()) {
-                                final String recContent = writer.getContent();
-                                try {
-                                    writer.saveRecord(
-                                           createFileNameFld ? fileName : null);
-                                } catch (BrumaException ze) {
-                                    System.err.println(
-                                   "WARNING: skipping record" +
-                                   " database:" + writer.getDbName() +
-                                   " fileName:" + fileName +
-                                   " content:" + recContent.substring(0, 300) +
-                                   " ...");
-                                }
-                            }
-                            if (current == root) {
-                                hasNext = false;
-                            } else {
-                                current = current.getFather();
-                            }
-                        } else {  // reset skipLevel
-                            if (allowSubElems) {
-                                builder = current.getContent();
-                                if (builder == null) {
-                                    builder = new StringBuilder();
-                                    current.setContent(builder);
-                                }
-                                builder.append("</" + buffer + ">");
+                    if ((skipped > 0)
+                               || ((actions & PathAutomaton.SCOPE) != 0)) {
+                        if (allowSubElems) {
+                            text.append('<').append('/')
+                                .append(parser.getLocalName()).append('>');
+                        }
+                        if (skipped > 0) {
+                            skipped--;
+                        } else {
+                            current = stack[--depth];
+                            actions = automaton.getActions(current);
+                        }
+                        break;
+                    }
+                    nodes = automaton.getNodes(current);
+                    if ((actions & PathAutomaton.TEXT) != 0) {
+                        // the nodes share the content, a single one has a tag
+                        for (XPathTree.TreeElement node : nodes) {
+                            if ((automaton.getActions(node)
+                                                 & PathAutomaton.TEXT) != 0) {
+                                saveContent(node);
                             }
-                            skipLevel = Integer.MAX_VALUE;
                         }
-                    } else if (allowSubElems) {
-                        builder = current.getContent();
-                        if (builder == null) {
-                            builder = new StringBuilder();
-                            current.setContent(builder);
+                    }
+                    for (XPathTree.TreeElement node : nodes) {
+                        final int flags = automaton.getActions(node);
+
+                        state.closeContent(node);
+                        if ((flags & PathAutomaton.GROUPS) != 0) {
+                            saveGroups(node);
                         }
-                        builder.append("</" + buffer + ">");
+                        if ((flags & PathAutomaton.EMPTY_FIELDS) != 0) {
+                            createEmptyFields(node);
+                        }
+                    }
+                    if ((actions & PathAutomaton.SAVE_RECORD) != 0) {
+                        saveRecord();
+                    }
+                    current = stack[--depth];
+                    if (current == start) {  // end of the root element
+                        hasNext = false;
+                    } else {
+                        actions = automaton.getActions(current);
                     }
-                    curLevel--;
                     break;
 
                 default:
@@ -268,79 +485,198 @@ class StaxXmlWalker {
         /*if (writer.hasFields()) {
             writer.saveRecord();
         }*/
-        xpath.resetTreeVisited(root); // reset current children
+        state.resetTreeVisited(root); // reset current children
+        addMetrics();
     }
 
-    private void createEmptyChildrenFields(
-                final Map<String, XPathTree.TreeElement> children)
-                                                        throws BrumaException {
-        if (children != null) {
-            for (XPathTree.TreeElement cur : children.values()) {
-                createEmptyFields(cur);
+    /**
+     * Keeps the start tag of an element that is not in the table when the
+     * subelements are part of the content.
+     */
+    private void appendStartTag(final CharArena text,
+                                final String prefix,
+                                final String localName) {
+        if (allowSubElems) {
+            text.append('<');
+            if ((prefix != null) && !prefix.isEmpty()) {
+                text.append(prefix).append(':');
             }
+            text.append(localName).append('>');
+        }
+    }
+
+    private void saveRecord() throws BrumaException {
+        try {
+            writer.saveRecord(createFileNameFld ? fileName : null);
+        } catch (IsisWriter.WriteBehindException wbe) {
+            throw wbe; // the master can not be written, not a bad record
+        } catch (BrumaException ze) {
+            final String recContent = writer.getSkippedContent();
+            System.err.println(
+           "WARNING: skipping record" +
+           " database:" + writer.getDbName() +
+           " fileName:" + fileName +
+           " content:" + recContent.substring(0,
+                   Math.min(300, recContent.length())) +
+           " ...");
         }
+        addMetrics();
     }
 
+    /**
+     * parser.next() measuring the parse time and the time spent since the
+     * previous call (build time).
+     */
+    private int timedNext() throws XMLStreamException {
+        final long start = System.nanoTime();
+        final int ret;
+
+        buildNanos += start - mark;
+        ret = parser.next();
+        mark = System.nanoTime();
+        parseNanos += mark - start;
+
+        return ret;
+    }
+
+    private void addMetrics() {
+        if (metrics != null) {
+            buildNanos += System.nanoTime() - mark;
+            mark = System.nanoTime();
+            metrics.addWalked(elementsSeen, elementsMapped, parseNanos,
+                                                                  buildNanos);
+        }
+        elementsSeen = 0;
+        elementsMapped = 0;
+        parseNanos = 0;
+        buildNanos = 0;
+    }
+
+    /**
+     * Writes an empty field for each field of the element subtree that was
+     * not found in the xml element and marks the subtree as visited.
+     */
     private void createEmptyFields(final XPathTree.TreeElement current)
                                                         throws BrumaException {
-        final int tag;
-
         if (createMissFld && (current != null)) {
-            tag = current.getTag();
-            if ((tag != XPathTree.NULL_TAG) &&  (!current.isVisited())) {
-                writer.addField(tag, DEFAULT_EMPTY_FIELD);
+            final int[] tags = xpath.getEmptyTags();
+            final int[] starts = xpath.getEmptyStarts();
+            final int end = current.getEnd();
+
+            for (int id = state.nextNotVisited(current.getId()); id < end;
+                                          id = state.nextNotVisited(id + 1)) {
+                for (int idx = starts[id]; idx < starts[id + 1]; idx++) {
+                    writer.addField(tags[idx], DEFAULT_EMPTY_FIELD);
+                }
             }
-            current.setVisited(true);
-            createEmptyChildrenFields(current.getChildren());
+            state.setTreeVisited(current);
         }
     }
 
     private void saveContent(final XPathTree.TreeElement current)
                                                          throws BrumaException {
         final int tag;
-        final StringBuilder builder;
+        final CharSequence content;
 
         if (current != null) {
             tag = current.getTag();
             if (tag != XPathTree.NULL_TAG) {
-                builder = current.getContent();
-                if ((builder == null) && createMissFld) {
-                    writer.addField(tag, "");
-                } else if ((builder.length() > 0) || createMissFld) {
-                    writer.addField(tag, builder.toString());
-                    builder.setLength(0);
+                content = state.getContent(current);
+                if (content.length() == 0) {
+                    if (createMissFld) {
+                        if (current.getGroupId() == -1) {
+                            writer.addField(tag, "");
+                        } else {
+                            state.addGroupContent(current, "");
+                        }
+                    }
+                } else if (current.getGroupId() != -1) {
+                    state.addGroupContent(current, content);
+                } else {
+                    writer.addField(tag, content);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the grouped fields of the element occurrence that just ended.
+     */
+    private void saveGroups(final XPathTree.TreeElement current)
+                                                         throws BrumaException {
+        if (current != null) {
+            for (int gid : current.getGroups()) {
+                final String content = state.takeGroup(gid);
+
+                if (content != null) {
+                    writer.addField(xpath.getGroupTag(gid), content);
+                } else if (createMissFld) {
+                    writer.addField(xpath.getGroupTag(gid), DEFAULT_EMPTY_FIELD);
                 }
             }
         }
     }
 
+    /**
+     * Copies the parser text buffer into the current element content. With
+     * native entities the parser has resolved '&amp;', '&lt;' and '&gt;', so
+     * they are escaped again to give the same text of the default mode.
+     */
+    private void appendText(final CharArena text) {
+        final int len = parser.getTextLength();
+
+        if (len > 0) {
+            if (nativeEntities) {
+                text.appendEscaped(parser.getTextCharacters(),
+                                               parser.getTextStart(), len);
+            } else {
+                text.append(parser.getTextCharacters(), parser.getTextStart(),
+                                               len, (char)REPLACE_CHAR, '&');
+            }
+        }
+    }
+
+    /**
+     * @return the string with '&amp;', '&lt;' and '&gt;' for the '&', '<' and
+     *         '>' chars (see appendText)
+     */
+    private static String escape(final String str) {
+        if ((str.indexOf('&') == -1) && (str.indexOf('<') == -1)
+                                     && (str.indexOf('>') == -1)) {
+            return str;
+        }
+        return str.replace("&", "&amp;").replace("<", "&lt;")
+                                         .replace(">", "&gt;");
+    }
+
     private void parseAttribute(final XPathTree.TreeElement current)
                                                          throws BrumaException {
         assert current != null;
 
         final int attCount = parser.getAttributeCount();
-        StringBuilder builder;
         int tag;
+        String namespace;
         String value;
         XPathTree.TreeElement elem;
 
         for (int index = 0; index < attCount; index++) {
-            value = "@" + parser.getAttributeName(index);
-            elem = current.getChild(value);
+            namespace = parser.getAttributeNamespace(index);
+            if ((namespace != null) && !namespace.isEmpty()) {
+                continue; // table attributes have no namespace
+            }
+            elem = current.getAttribute(parser.getAttributeLocalName(index));
             if (elem != null) {
                 tag = elem.getTag();
-                builder = elem.getContent();
-                if (builder == null) {
-                    builder = new StringBuilder();
-                } else {
-                    builder.setLength(0);
+                value = nativeEntities
+                                   ? escape(parser.getAttributeValue(index))
+                                   : parser.getAttributeValue(index)
+                                            .replace((char)REPLACE_CHAR, '&');
+                if (elem.getGroupId() == -1) {
+                    writer.addField(tag, value);
+                } else if (!value.isEmpty() || createMissFld) {
+                    state.addGroupContent(elem, value);
                 }
-                //builder.append(parser.getAttributeValue(index));
-                builder.append(parser.getAttributeValue(index)
-                                            .replace((char)REPLACE_CHAR, '&'));
-                elem.setContent(builder);
-                writer.addField(tag, builder.toString());
-                elem.setVisited(true);
+                state.setVisited(elem);
             }
         }
     }
@@ -367,7 +703,7 @@ class ReplaceBufferedReader extends BufferedReader {
                     int off,
                     int len) throws IOException {
         int val = super.read(cbuf, off, len);
-        for (int blen = 0; blen < len; blen++) {
+        for (int blen = 0; blen < val; blen++) { // only the chars actually read
             if (cbuf[off + blen] == '&') {
                 cbuf[off + blen] = StaxXmlWalker.REPLACE_CHAR;
             }
@@ -9,8 +9,6 @@ package br.bireme.xml2isis;
 
 import bruma.BrumaException;
 import bruma.master.Field;
-import bruma.master.Master;
-import bruma.master.MasterFactory;
 import bruma.master.Record;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,6 +16,9 @@ import java.util.List;
 /**
  * Coloca todos os campos 'guestTag' depois do campo 'hostTag' no subcampo
  * 'subfield' do campo 'hostTag'.
+ * The records are rewritten into a temporary master (see MasterTransformer)
+ * that then replaces the original one, so the master does not keep the old
+ * record versions.
  *
  * @author Heitor Barbieri
  * date 19/09/2010
@@ -30,21 +31,39 @@ public class ToSubfield {
                                final char subfield,
                                final boolean guestBeforeHost)
                                                         throws BrumaException {
-        final Master mst = MasterFactory.getInstance(dbName).setEncoding(encoding)
-                                                            .open();
-        Record other;
+        convert(dbName, encoding, hostTag, guestTag, subfield, guestBeforeHost,
+                                    Runtime.getRuntime().availableProcessors());
+    }
 
-        for (Record rec : mst) {
-            if (rec.getStatus() == Record.Status.ACTIVE) {
-                other = insertFields(rec, hostTag, guestTag, subfield,
-                                                               guestBeforeHost);
-                if (other != rec) {
-                    mst.writeRecord(other);
-                }
-            }
+    /**
+     * @param threads number of threads reading and converting the records
+     */
+    public static void convert(final String dbName,
+                               final String encoding,
+                               final int hostTag,
+                               final int guestTag,
+                               final char subfield,
+                               final boolean guestBeforeHost,
+                               final int threads) throws BrumaException {
+        if (dbName == null) {
+            throw new BrumaException("null dbName");
+        }
+        if (encoding == null) {
+            throw new BrumaException("null encoding");
         }
+        final String name = dbName.endsWith(".mst")
+                        ? dbName.substring(0, dbName.length() - 4) : dbName;
+        final String tmpName = name + "_tosubfield";
 
-        mst.close();
+        new MasterTransformer(name, encoding, threads).transform(
+            new MasterTransformer.Transform() {
+                @Override
+                public Record transform(final Record rec) throws BrumaException {
+                    return insertFields(rec, hostTag, guestTag, subfield,
+                                                               guestBeforeHost);
+                }
+            }, tmpName, true);
+        MasterTransformer.replaceMaster(tmpName, name);
     }
 
     private static Record insertFields(final Record rec,
@@ -118,7 +137,8 @@ public class ToSubfield {
 
     private static void usage() {
         System.err.println("usage: ToSubField <dbname> <encoding> <hostTag> "
-                         + "<guestTag> <subfieldId> [--guestBeforeHost]");
+                         + "<guestTag> <subfieldId> [--guestBeforeHost] "
+                         + "[threads=<number>]");
         System.exit(1);
     }
 
@@ -126,10 +146,19 @@ public class ToSubfield {
         if (args.length < 5) {
             usage();
         }
-        final boolean before = (args.length > 5)
-                                        && args[5].equals("--guestBeforeHost");
+        boolean before = false;
+        int threads = Runtime.getRuntime().availableProcessors();
 
+        for (int idx = 5; idx < args.length; idx++) {
+            if (args[idx].equals("--guestBeforeHost")) {
+                before = true;
+            } else if (args[idx].startsWith("threads=")) {
+                threads = Integer.parseInt(args[idx].substring(8));
+            } else {
+                usage();
+            }
+        }
         convert(args[0], args[1], Integer.parseInt(args[2]),
-               Integer.parseInt(args[3]), args[4].charAt(0), before);
+               Integer.parseInt(args[3]), args[4].charAt(0), before, threads);
     }
 }
@@ -0,0 +1,241 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Creates the StaxXmlWalker objects of a conversion. The XMLInputFactory is
+ * looked up and configured only once and then shared by all walkers.
+ *
+ * @author Heitor Barbieri
+ */
+class WalkerFactory {
+    private final XMLInputFactory factory;
+    private final XPathTree xpath;
+    private final boolean createMissFld;
+    private final boolean allowSubElems;
+    private final String encoding;
+    private final boolean nativeEntities;
+    private final StaxXmlWalker.InputMode inputMode;
+    private boolean createFileNameFld;
+    private ConversionMetrics metrics;
+    private final ThreadLocal<XPathTree.State> states; // one per thread
+
+    /**
+     * @param staxFactory class name of the XMLInputFactory implementation or
+     *        null to use the default lookup (javax.xml.stream.XMLInputFactory
+     *        system property, service loader, jdk implementation)
+     */
+    WalkerFactory(final String staxFactory,
+                  final XPathTree xpath,
+                  final boolean createMissFld,
+                  final boolean allowSubElems,   // include subelements inside a element, f ex, <abstract>xxx <b>cc</b> yyy</abstract>
+                  final String encoding,
+                  final boolean nativeEntities,
+                  final StaxXmlWalker.InputMode inputMode) {
+        if (xpath == null) {
+            throw new IllegalArgumentException("null xpath");
+        }
+        if (inputMode == null) {
+            throw new IllegalArgumentException("null inputMode");
+        }
+        if ((inputMode != StaxXmlWalker.InputMode.CHARS) && !nativeEntities) {
+            throw new IllegalArgumentException(
+                                "byte input modes require native entities");
+        }
+        this.factory = newInputFactory(staxFactory, nativeEntities);
+        this.xpath = xpath;
+        this.createMissFld = createMissFld;
+        this.allowSubElems = allowSubElems;
+        this.encoding = (encoding == null)
+                            ? System.getProperty("file.encoding") : encoding;
+        this.nativeEntities = nativeEntities;
+        this.inputMode = inputMode;
+        this.createFileNameFld = false;
+        this.metrics = null;
+        this.states = new ThreadLocal<>();
+    }
+
+    static XMLInputFactory newInputFactory(final String staxFactory,
+                                           final boolean nativeEntities) {
+        final XMLInputFactory factory;
+
+        if (staxFactory == null) {
+            factory = XMLInputFactory.newInstance();
+        } else {
+            try {
+                factory = (XMLInputFactory)Class.forName(staxFactory)
+                                         .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | ClassCastException ex) {
+                throw new IllegalArgumentException(
+                              "invalid XMLInputFactory class:" + staxFactory, ex);
+            }
+        }
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES,
+                                                                Boolean.FALSE);
+        // A coalescing parser replaces the entity references anyway
+        factory.setProperty(XMLInputFactory.IS_COALESCING,
+                                             Boolean.valueOf(!nativeEntities));
+        return factory;
+    }
+
+    XPathTree getXPath() {
+        return xpath;
+    }
+
+    boolean isCreatingMissingFields() {
+        return createMissFld;
+    }
+
+    boolean isAllowingSubElements() {
+        return allowSubElems;
+    }
+
+    String getEncoding() {
+        return encoding;
+    }
+
+    boolean isNativeEntities() {
+        return nativeEntities;
+    }
+
+    StaxXmlWalker.InputMode getInputMode() {
+        return inputMode;
+    }
+
+    void createFileNameField(final boolean opt) {
+        createFileNameFld = opt;
+    }
+
+    /**
+     * @param metrics counts the bytes, elements and parse/build times of the
+     *        walkers (null if not collected)
+     */
+    void setMetrics(final ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the walker state of the current thread, so the content buffer
+     *         and the flags are reused by all walkers of the thread (a walker
+     *         must be closed before the next one is created)
+     */
+    XPathTree.State getState() {
+        XPathTree.State state = states.get();
+
+        if (state == null) {
+            state = xpath.newState();
+            states.set(state);
+        } else {
+            state.clear();
+        }
+        return state;
+    }
+
+    StaxXmlWalker newWalker(final File xml,
+                            final IsisWriter writer) throws XMLStreamException,
+                                                            IOException {
+        return newWalker(xml, writer, null);
+    }
+
+    /**
+     * @param crc gets the CRC32 of the file when the walker is closed (may
+     *        be null)
+     */
+    StaxXmlWalker newWalker(final File xml,
+                            final IsisWriter writer,
+                            final Checksum crc) throws XMLStreamException,
+                                                       IOException {
+        final StaxXmlWalker walker = new StaxXmlWalker(xml, writer, this, crc);
+
+        walker.createFileNameField(createFileNameFld);
+
+        return walker;
+    }
+
+    /**
+     * @param in one document of a RecordSplitter
+     * @param fileName name of the file the document comes from
+     */
+    StaxXmlWalker newWalker(final InputStream in,
+                            final String fileName,
+                            final IsisWriter writer) throws XMLStreamException,
+                                                            IOException {
+        final StaxXmlWalker walker = new StaxXmlWalker(in, fileName, writer,
+                                                                        this);
+
+        walker.createFileNameField(createFileNameFld);
+
+        return walker;
+    }
+
+    /**
+     * @return true if the files can be cut by a RecordSplitter: the table
+     *         allows it and the encoding keeps the ascii chars in single bytes
+     *         that are not part of other chars (utf-8 or single byte charsets)
+     */
+    boolean isSplittable() {
+        final Charset charset = Charset.forName(encoding);
+        final String markup = "<>/?!-[]'\" ";
+
+        return RecordSplitter.isSplittable(xpath)
+                && (charset.equals(StandardCharsets.UTF_8)
+                    || (charset.newEncoder().maxBytesPerChar() == 1f))
+                && Arrays.equals(markup.getBytes(charset),
+                                 markup.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @param chunkSize minimum number of bytes of a chunk
+     * @param crc gets the CRC32 of the file when the splitter is closed (may
+     *        be null)
+     */
+    RecordSplitter newSplitter(final File xml,
+                               final int chunkSize,
+                               final Checksum crc) throws IOException {
+        return new RecordSplitter(StaxXmlWalker.openInput(xml,
+                   inputMode == StaxXmlWalker.InputMode.MMAP, metrics, crc),
+                   xpath.getSaveLevel(), chunkSize);
+    }
+
+    /**
+     * The StAX api does not promise thread safe factories, so the (cheap)
+     * reader creation is serialized.
+     */
+    XMLStreamReader createReader(final InputStream in,
+                                 final String enc) throws XMLStreamException {
+        synchronized (factory) {
+            return factory.createXMLStreamReader(in, enc);
+        }
+    }
+
+    XMLStreamReader createReader(final Reader in) throws XMLStreamException {
+        synchronized (factory) {
+            return factory.createXMLStreamReader(in);
+        }
+    }
+
+    String getImplementation() {
+        return factory.getClass().getName();
+    }
+}
@@ -11,7 +11,12 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -24,29 +29,79 @@ public class XPathTree {
     /** tag de no´ da arvore cujo conteudo nao sera usado. */
     static final int NULL_TAG = -1;
 
-    class TreeElement {
+    /**
+     * Node of the conversion tree. After the tree is compiled the nodes are
+     * immutable and can be shared by many walkers. The per document state
+     * (visited flags and text content) is kept in a separate State object.
+     */
+    static class TreeElement {
         private final String name; // se comecar por @ e´ atributo
+        private final String prefix;    // interned name prefix or ""
+        private final String localName; // interned name without prefix or @
+        private final boolean descendant; // '//name': any depth below father
+        private final boolean wildcard;   // '*': any element name
+        private final int position;       // 'name[n]': n-th child or 0
         private final TreeElement father;
         private int tag;
-        private boolean visited;  // se este elem encontrou correspondente no arq XML
         private boolean recSave;  // should save the record?
         private boolean attribute; // is element and has attribute(s)
         private Map<String, TreeElement> children;
-        private StringBuilder content; // conteudo do xml associado com o elemento
-
+        private TreeElement[] attributes; // attribute children (compiled)
+        private int id;   // preorder position of the node in the tree
+        private int end;  // id of the node following the last descendant
+        private char subfield;     // subfield id or 0 if it is a whole field
+        private int groupId;       // grouped field of the node or -1 (see setGroups)
+        private int[] groups;      // grouped fields written at the end of this element
+
+        /**
+         * @param name location step: '@attr', 'name', '*', '//name', '//*',
+         *        'name[n]' or '*[n]'
+         */
         TreeElement(final String name,
                     final int tag,
                     final TreeElement father) {
             assert name != null;
 
+            final int bracket = name.indexOf('[');
+            String step = name;
+
             this.name = name;
+            this.descendant = step.startsWith("//");
+            if (descendant) {
+                step = step.substring(2);
+            }
+            if (bracket == -1) {
+                this.position = 0;
+            } else {
+                this.position = Integer.parseInt(
+                       name.substring(bracket + 1, name.length() - 1));
+                step = step.substring(0, step.indexOf('['));
+            }
+            this.wildcard = step.equals("*");
+
+            final int colon = step.indexOf(':');
+
+            if (step.charAt(0) == '@') {
+                this.prefix = "";
+                this.localName = step.substring(1).intern();
+            } else if (colon == -1) {
+                this.prefix = "";
+                this.localName = step.intern();
+            } else {
+                this.prefix = step.substring(0, colon).intern();
+                this.localName = step.substring(colon + 1).intern();
+            }
             this.father = father;
             this.tag = tag;
-            this.visited = false;
             this.recSave = false;
             this.attribute = false;
             this.children = null;
-            this.content = null;
+            this.attributes = EMPTY;
+            this.id = 0;
+            this.end = 0;
+            this.subfield = 0;
+            this.groupId = -1;
+            this.groups = NO_GROUPS;
 
             if ((name.charAt(0) == '@')
                                     && (tag == XPathTree.NULL_TAG)) {
@@ -54,7 +109,7 @@ public class XPathTree {
             }
         }
 
-        void addChild(final TreeElement elem) {
+        private void addChild(final TreeElement elem) {
             assert elem != null;
 
             if (children == null) {
@@ -68,6 +123,22 @@ public class XPathTree {
                                                  ? null : children.get(name);
         }
 
+        /**
+         * Finds an attribute child without creating any string.
+         * @param lName local name of an attribute without namespace
+         * @return the child attribute or null if not found
+         */
+        TreeElement getAttribute(final String lName) {
+            for (TreeElement attr : attributes) {
+                final String aName = attr.localName;
+
+                if ((aName == lName) || aName.equals(lName)) {
+                    return attr;
+                }
+            }
+            return null;
+        }
+
         Map<String,TreeElement> getChildren() {
             return children;
         }
@@ -76,27 +147,55 @@ public class XPathTree {
             return name;
         }
 
-        int getTag() {
-            return tag;
+        /**
+         * @return the interned name prefix or ""
+         */
+        String getPrefix() {
+            return prefix;
         }
 
-        void setTag(final int nTag) {
-            this.tag = nTag;
+        /**
+         * @return the interned name without prefix or '@' ("*" for a wildcard)
+         */
+        String getLocalName() {
+            return localName;
+        }
+
+        /**
+         * @return true if the node matches at any depth below its father
+         */
+        boolean isDescendant() {
+            return descendant;
+        }
+
+        /**
+         * @return true if the node matches any element name
+         */
+        boolean isWildcard() {
+            return wildcard;
         }
 
-        boolean isVisited() {
-            return visited;
+        /**
+         * @return n if the node only matches the n-th child of its father
+         *         having the node name (any name for a wildcard), or 0
+         */
+        int getPosition() {
+            return position;
         }
 
-        void setVisited(final boolean visited) {
-            this.visited = visited;
+        int getTag() {
+            return tag;
+        }
+
+        private void setTag(final int nTag) {
+            this.tag = nTag;
         }
 
         boolean isRecSave() {
             return recSave;
         }
 
-        void setRecSave(final boolean opt) {
+        private void setRecSave(final boolean opt) {
             recSave = opt;
         }
 
@@ -104,7 +203,7 @@ public class XPathTree {
             return attribute;
         }
 
-        void setHasAttribute(final boolean opt) {
+        private void setHasAttribute(final boolean opt) {
             this.attribute = opt;
         }
 
@@ -112,12 +211,43 @@ public class XPathTree {
             return father;
         }
 
-        StringBuilder getContent() {
-            return content;
+        int getId() {
+            return id;
+        }
+
+        /**
+         * @return id of the node following the last descendant, so the
+         *         subtree of the node has the ids [getId(), getEnd())
+         */
+        int getEnd() {
+            return end;
+        }
+
+        boolean isAttribute() {
+            return name.charAt(0) == '@';
+        }
+
+        /**
+         * @return the subfield id of the node content or 0 if the content
+         *         is not a subfield
+         */
+        char getSubfield() {
+            return subfield;
         }
 
-        void setContent(final StringBuilder content) {
-            this.content = content;
+        /**
+         * @return the grouped field the node content belongs to or -1 if the
+         *         content is a field by itself
+         */
+        int getGroupId() {
+            return groupId;
+        }
+
+        /**
+         * @return the grouped fields that are written when this element ends
+         */
+        int[] getGroups() {
+            return groups;
         }
 
         String toString(final int spaces) {
@@ -135,16 +265,192 @@ public class XPathTree {
         }
     }
 
+    /**
+     * Per document state of a walker. Indexed by the node ids, so resetting
+     * a subtree is a range clear of the visited flags.
+     */
+    static class State {
+        private final BitSet visited; // se o elem encontrou correspondente no arq XML
+        private final CharArena text;  // conteudo do xml dos elementos abertos
+        private final int[] start;     // start of the element content in text
+        private final int[] counts;    // children seen by the positional nodes
+        private final StringBuilder[] hosts;     // leading content of the grouped fields
+        private final StringBuilder[] subfields; // subfields of the grouped fields
+
+        private State(final int size,
+                      final int groupCount) {
+            visited = new BitSet(size);
+            text = new CharArena();
+            start = new int[size];
+            counts = new int[size];
+            hosts = new StringBuilder[groupCount];
+            subfields = new StringBuilder[groupCount];
+        }
+
+        /**
+         * Forgets the contents and visited flags of a previous document.
+         */
+        void clear() {
+            visited.clear();
+            text.clear();
+            for (int gid = 0; gid < hosts.length; gid++) {
+                if (hosts[gid] != null) {
+                    hosts[gid].setLength(0);
+                }
+                if (subfields[gid] != null) {
+                    subfields[gid].setLength(0);
+                }
+            }
+        }
+
+        boolean isVisited(final TreeElement elem) {
+            return visited.get(elem.id);
+        }
+
+        void setVisited(final TreeElement elem) {
+            visited.set(elem.id);
+        }
+
+        /**
+         * @return the first node id from 'id' on that was not visited
+         */
+        int nextNotVisited(final int id) {
+            return visited.nextClearBit(id);
+        }
+
+        /**
+         * Sets the visited flag of the element and of all its descendants
+         */
+        void setTreeVisited(final TreeElement elem) {
+            visited.set(elem.id, elem.end);
+        }
+
+        /**
+         * Reset the visited flag of the element and of all its descendants
+         */
+        void resetTreeVisited(final TreeElement elem) {
+            visited.clear(elem.id, elem.end);
+        }
+
+        /**
+         * Starts the content of the element, which becomes the current one:
+         * the text appended from now on belongs to it (see content()).
+         */
+        void openContent(final TreeElement elem) {
+            start[elem.id] = text.mark();
+        }
+
+        /**
+         * @return number of children of the current father element matched
+         *         by the name test of each positional node (see PathAutomaton)
+         */
+        int[] getCounts() {
+            return counts;
+        }
+
+        /**
+         * @return the buffer where the text of the current element is appended
+         */
+        CharArena content() {
+            return text;
+        }
+
+        /**
+         * @return view of the content of the current element, valid until
+         *         the next change of the contents
+         */
+        CharSequence getContent(final TreeElement elem) {
+            return text.slice(start[elem.id]);
+        }
+
+        /**
+         * Removes the content of the current element, its father becomes the
+         * current one again.
+         */
+        void closeContent(final TreeElement elem) {
+            text.reset(start[elem.id]);
+        }
+
+        /**
+         * Adds the content of a grouped node to the current occurrence of its
+         * grouped field.
+         */
+        void addGroupContent(final TreeElement elem,
+                             final CharSequence text) {
+            final int gid = elem.groupId;
+
+            if (elem.subfield == 0) {
+                if (hosts[gid] == null) {
+                    hosts[gid] = new StringBuilder();
+                }
+                hosts[gid].append(text);
+            } else {
+                if (subfields[gid] == null) {
+                    subfields[gid] = new StringBuilder();
+                }
+                subfields[gid].append('^').append(elem.subfield).append(text);
+            }
+        }
+
+        /**
+         * Retrieves and clears the current occurrence of a grouped field.
+         * @return the field content or null if nothing was added
+         */
+        String takeGroup(final int gid) {
+            final StringBuilder host = hosts[gid];
+            final StringBuilder sub = subfields[gid];
+            final boolean hasHost = (host != null) && (host.length() > 0);
+            final boolean hasSub = (sub != null) && (sub.length() > 0);
+            final String ret;
+
+            if (hasHost && hasSub) {
+                ret = host.append(sub).toString();
+            } else if (hasHost) {
+                ret = host.toString();
+            } else if (hasSub) {
+                ret = sub.toString();
+            } else {
+                ret = null;
+            }
+            if (hasHost) {
+                host.setLength(0);
+            }
+            if (hasSub) {
+                sub.setLength(0);
+            }
+            return ret;
+        }
+    }
+
+    /** Location step of the table xpaths: '/name', '//*', '/name[2]' ... */
+    private static final String STEP =
+                              "//?(?:\\*|[\\w\\-\\.:]+)(?:\\[[1-9]\\d*\\])?";
+    private static final Pattern STEP_PATTERN = Pattern.compile(STEP);
+    private static final TreeElement[] EMPTY = new TreeElement[0];
+    private static final int[] NO_GROUPS = new int[0];
+
     private TreeElement root;
     private int saveLevel;
+    private int size;  // number of nodes of the tree
+    private final List<TreeElement> leaves; // nodes with tags in table order
+    private int[] groupTags;  // tag of each grouped field
+    private int[] emptyTags;   // tags of the empty fields of the nodes
+    private int[] emptyStarts; // first emptyTags index of each node id
+    private final PathAutomaton automaton;
 
     XPathTree(final File xpath2Isis) throws IOException {
         if (xpath2Isis == null) {
             throw new IllegalArgumentException();
         }
         root = null;
+        leaves = new ArrayList<>();
+        groupTags = NO_GROUPS;
         parseFile(xpath2Isis);
         saveLevel = setSaveLevel(root, 1);
+        setGroups();
+        size = compile(root, 0);
+        setEmptyFields();
+        automaton = new PathAutomaton(this);
     }
 
     TreeElement getRoot() {
@@ -155,17 +461,50 @@ public class XPathTree {
         return saveLevel;
     }
 
+    /**
+     * @return the tags of the empty fields of all nodes: the fields of the
+     *         node with id n are emptyTags[emptyStarts[n]] to
+     *         emptyTags[emptyStarts[n + 1] - 1] (see getEmptyStarts)
+     */
+    int[] getEmptyTags() {
+        return emptyTags;
+    }
+
+    int[] getEmptyStarts() {
+        return emptyStarts;
+    }
+
+    /**
+     * @return the table compiled into a state machine (see PathAutomaton)
+     */
+    PathAutomaton getAutomaton() {
+        return automaton;
+    }
+
+    /**
+     * @return a new per document state to be used by a single walker
+     */
+    State newState() {
+        return new State(size, groupTags.length);
+    }
+
+    /**
+     * @return the tag of a grouped field
+     */
+    int getGroupTag(final int gid) {
+        return groupTags[gid];
+    }
+
     private void parseFile(final File xpath2Isis) throws IOException {
         assert xpath2Isis != null;
 
         final BufferedReader reader =
                               new BufferedReader(new FileReader(xpath2Isis));
         final Pattern pattern = Pattern.compile(
-                      "(\\d+)\\s+((/[\\w\\-\\.:]+)+(@[\\w\\-\\.]+)?)");
+                      "(\\d+)(\\^[0-9a-zA-Z])?\\s+((" + STEP + ")+(@[\\w\\-\\.]+)?)");
         String line = null;
         Matcher mat;
 
-        resetTreeVisited(root);
         while (true) {
             line = reader.readLine();
             if (line == null) {
@@ -176,8 +515,9 @@ public class XPathTree {
                 if (line.charAt(0) != '#') {
                     mat = pattern.matcher(line);
                     if (mat.matches()) {
-                       // Tira / inicial do xpath (/ final nao existe - reg exp)
-                        putElement(mat.group(1), mat.group(2).substring(1));
+                        putElement(mat.group(1), (mat.group(2) == null)
+                                   ? (char)0 : mat.group(2).charAt(1),
+                                   mat.group(3));
                     } else {
                         throw new IOException(
                                       "unsuported xpath specification:" + line);
@@ -217,122 +557,208 @@ public class XPathTree {
         }
     }
 
+    /**
+     * @param subfield subfield id ('tag^x' in the table) or 0
+     * @param xpath '/root/step/.../step@attr' where a step is 'name', '*',
+     *        'name[n]' or '*[n]' and a '//' before a step (but the root one)
+     *        matches it at any depth
+     */
     private void putElement(final String stag,
+                            final char subfield,
                             final String xpath) throws IOException {
         assert stag != null;
         assert xpath != null;
 
         final int tag = Integer.parseInt(stag);
-        final String[] split = xpath.split("/");
-        final int len = split.length;
-        int pos = split[0].indexOf('@');
-        Map<String, TreeElement> children;
+        final Matcher mat = STEP_PATTERN.matcher(xpath);
+        final List<String> split = new ArrayList<>();
+        final String attr;
+        final int len;
         TreeElement current;
         TreeElement child;
-        String eName;
-        boolean found;
+        TreeElement leaf;
+        int last = 0;
 
         if ((tag != NULL_TAG) && (tag < 0)) {
             throw new IOException("invalid tag:" + stag);
         }
-        if (root == null) {
-            final int etag = len > 1 ? NULL_TAG : tag;
-
-            if (pos == -1) { // Nao tem @ - nao tem atributo
-                root = new TreeElement(split[0], etag, null);
-            } else {
-                root = new TreeElement(split[0].substring(0, pos), etag, null);
+        while (mat.find()) {
+            final String step = xpath.startsWith("//", mat.start())
+                                 ? xpath.substring(mat.start(), mat.end())
+                                 : xpath.substring(mat.start() + 1, mat.end());
+
+            if (step.startsWith("//") && (step.indexOf('[') != -1)) {
+                throw new IOException(
+                      "unsuported position of a descendant element:" + xpath);
             }
-        } else if (root.getName().compareTo(split[0]) != 0) {
+            split.add(step);
+            last = mat.end();
+        }
+        len = split.size();
+        attr = (last < xpath.length()) ? xpath.substring(last) : null;
+        if (split.get(0).startsWith("//") || (split.get(0).indexOf('[') != -1)) {
+            throw new IOException("unsuported root element:" + xpath);
+        }
+
+        if (root == null) {
+            root = new TreeElement(split.get(0), len > 1 ? NULL_TAG : tag, null);
+        } else if (root.getName().compareTo(split.get(0)) != 0) {
             throw new IllegalArgumentException("only one root element allowed");
         }
         current = root;
 
         // Trata nao folhas do xpath
-        for (int index = 1; index < len - 1; index++) {
-            eName = split[index];
-            if (eName.contains("@")) {
-                throw new IllegalArgumentException(
-                                              "atttribute is not at the leaf");
-            }
-            found = false;
-            children = current.getChildren();
-
-            if (children != null) {
-                for (TreeElement ch : children.values()) {
-                    if (ch.getName().compareTo(eName) == 0) {
-                        current = ch;
-                        found = true;
-                        break;
-                    }
-                }
-            }
-            if (!found) {
-                child = new TreeElement(eName, NULL_TAG, current);
+        for (int index = 1; index < len; index++) {
+            final String eName = split.get(index);
+
+            child = current.getChild(eName);
+            if (child == null) {
+                child = new TreeElement(eName,
+                   ((index < len - 1) || (attr != null)) ? NULL_TAG : tag,
+                   current);
                 current.addChild(child);
-                current = child;
+            } else if ((index == len - 1) && (attr == null)) {
+                final int ctag = child.getTag();
+                if (ctag == NULL_TAG) {
+                    child.setTag(tag);
+                } else if (ctag != tag) {
+                    throw new IllegalArgumentException("different leaf tag");
+                }
             }
+            current = child;
         }
 
         // Trata a folha do xpath
-        if (len == 1) {  // xpath so tem um nivel
-            if (pos == -1) { // Nao tem atributo
+        if (attr == null) {
+            if ((len == 1) && (current.getTag() != tag)) {
                 if (current.getTag() == NULL_TAG) {
                     current.setTag(tag);
-                } else if (current.getTag() != tag) {
+                } else {
                     throw new IllegalArgumentException("different leaf tag");
                 }
-            } else { // Tem atributo
-                final String attr = split[0].substring(pos);
+            }
+            leaf = current;
+        } else {
+            child = current.getChild(attr);
+            if (child != null) {
+                throw new IllegalArgumentException("duplicated attribute:"
+                                                 + attr);
+            }
+            leaf = new TreeElement(attr, tag, current);
+            current.addChild(leaf);
+            current.setHasAttribute(true);
+        }
+        if (leaves.contains(leaf)) {
+            if (leaf.subfield != subfield) {
+                throw new IllegalArgumentException("different leaf subfield");
+            }
+        } else if (tag != NULL_TAG) {
+            leaf.subfield = subfield;
+            leaves.add(leaf);
+        }
+//System.out.println(toString());
+    }
+
+    /**
+     * Groups the nodes of the tags having subfields ('tag^x' in the table).
+     * The nodes of a tag produce one field for each occurrence of the lowest
+     * element holding all of them: the content of the node without subfield
+     * (if any) followed by the '^x' subfields in the order they were read.
+     */
+    private void setGroups() {
+        final Map<Integer, List<TreeElement>> byTag = new LinkedHashMap<>();
+        final List<Integer> gtags = new ArrayList<>();
+
+        for (TreeElement leaf : leaves) {
+            List<TreeElement> nodes = byTag.get(leaf.tag);
 
-                child = current.getChild(attr);
-                if (child != null) {
-                    throw new IllegalArgumentException("duplicated attribute:"
-                                             + attr);
+            if (nodes == null) {
+                nodes = new ArrayList<>();
+                byTag.put(leaf.tag, nodes);
+            }
+            nodes.add(leaf);
+        }
+        for (Map.Entry<Integer, List<TreeElement>> entry : byTag.entrySet()) {
+            final List<TreeElement> nodes = entry.getValue();
+            final int gid = gtags.size();
+            TreeElement host = null;
+            TreeElement group = null;
+            boolean hasSubfield = false;
+
+            for (TreeElement node : nodes) {
+                if (node.subfield != 0) {
+                    hasSubfield = true;
+                    break;
                 }
-                current.addChild(new TreeElement(attr, tag, current));
-                current.setHasAttribute(true);
             }
-        } else { // xpath tem mais de um nivel
-            pos = split[len - 1].indexOf('@');
-
-            if (pos == -1) { // Nao tem atributo
-                eName = split[len - 1];
-                child = current.getChild(eName);
+            if (!hasSubfield) { // plain fields are not grouped
+                continue;
+            }
+            for (TreeElement node : nodes) {
+                final TreeElement anchor;
 
-                if (child == null) {
-                    child = new TreeElement(eName, tag, current);
-                    current.addChild(child);
+                if (node.subfield == 0) {
+                    if (host != null) {
+                        throw new IllegalArgumentException(
+                              "more than one field with subfields:" + node.tag);
+                    }
+                    host = node;
+                    anchor = node.isAttribute() ? node.father : node;
                 } else {
-                    final int ctag = child.getTag();
-                    if (ctag == NULL_TAG) {
-                        child.setTag(tag);
-                    } else if (ctag != tag) {
+                    anchor = node.father;
+                    if (anchor == null) {
                         throw new IllegalArgumentException(
-                                                          "different leaf tag");
+                                        "root element can not be a subfield");
                     }
                 }
-                current = child;
-            } else { // Tem atributo
-                final String attr = split[len - 1].substring(pos);
-
-                eName = split[len - 1].substring(0, pos);
-                child = current.getChild(eName);
-                if (child == null) {
-                    child = new TreeElement(eName, NULL_TAG, current);
-                    current.addChild(child);
-                }
-                current = child;
-                child = current.getChild(attr);
-                if (child != null) {
-                    throw new IllegalArgumentException("duplicated attribute:"
-                                                 + attr);
-                }
-                current.addChild(new TreeElement(attr, tag, current));
-                current.setHasAttribute(true);
+                group = (group == null) ? anchor : commonAncestor(group, anchor);
+            }
+            if (!isInsideRecord(group)) {
+                throw new IllegalArgumentException(
+                    "subfields of tag " + entry.getKey()
+                                 + " are not inside the record element");
+            }
+            for (TreeElement node : nodes) {
+                node.groupId = gid;
             }
+            group.groups = Arrays.copyOf(group.groups, group.groups.length + 1);
+            group.groups[group.groups.length - 1] = gid;
+            gtags.add(entry.getKey());
         }
-//System.out.println(toString());
+        groupTags = new int[gtags.size()];
+        for (int idx = 0; idx < groupTags.length; idx++) {
+            groupTags[idx] = gtags.get(idx);
+        }
+    }
+
+    private static TreeElement commonAncestor(final TreeElement elem1,
+                                              final TreeElement elem2) {
+        TreeElement ret = elem1;
+
+        while (ret != null) {
+            TreeElement cur = elem2;
+
+            while ((cur != null) && (cur != ret)) {
+                cur = cur.father;
+            }
+            if (cur == ret) {
+                break;
+            }
+            ret = ret.father;
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if the element is the record element or a descendant
+     */
+    private static boolean isInsideRecord(final TreeElement elem) {
+        TreeElement cur = elem;
+
+        while ((cur != null) && !cur.isRecSave()) {
+            cur = cur.father;
+        }
+        return cur != null;
     }
 
     /**
@@ -365,18 +791,80 @@ public class XPathTree {
         return ret;
     }
 
-    void resetTreeVisited(final TreeElement current) {
-        final Map<String, TreeElement> children;
+    /**
+     * Flattens, in node id order, the tags written when a node is missing
+     * with --createMissingFields: its own tag if the node is a field by
+     * itself and the tags of the grouped fields it holds. As the ids are in
+     * preorder, the empty fields of a subtree are a single range.
+     */
+    private void setEmptyFields() {
+        final TreeElement[] nodes = new TreeElement[size];
+        int count = 0;
+
+        index(root, nodes);
+        emptyStarts = new int[size + 1];
+        for (int id = 0; id < size; id++) {
+            emptyStarts[id] = count;
+            if ((nodes[id].tag != NULL_TAG) && (nodes[id].groupId == -1)) {
+                count++;
+            }
+            count += nodes[id].groups.length;
+        }
+        emptyStarts[size] = count;
+        emptyTags = new int[count];
+        for (int id = 0; id < size; id++) {
+            int pos = emptyStarts[id];
+
+            if ((nodes[id].tag != NULL_TAG) && (nodes[id].groupId == -1)) {
+                emptyTags[pos++] = nodes[id].tag;
+            }
+            for (int gid : nodes[id].groups) {
+                emptyTags[pos++] = groupTags[gid];
+            }
+        }
+    }
+
+    private static void index(final TreeElement current,
+                              final TreeElement[] nodes) {
+        if (current != null) {
+            nodes[current.id] = current;
+            if (current.children != null) {
+                for (TreeElement child : current.children.values()) {
+                    index(child, nodes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Numbers the nodes in preorder, so the descendants of a node have
+     * consecutive ids, builds the attribute lookup arrays and freezes the
+     * children maps.
+     * @return the id following the last node of the subtree
+     */
+    private int compile(final TreeElement current,
+                        final int nextId) {
+        int ret = nextId;
 
         if (current != null) {
-            current.setVisited(false);
-            children = current.getChildren();
-            if (children != null) {
-                for (TreeElement child : children.values()) {
-                    resetTreeVisited(child);
+            current.id = ret++;
+            if (current.children != null) {
+                final List<TreeElement> attrs = new ArrayList<>();
+
+                for (TreeElement child : current.children.values()) {
+                    ret = compile(child, ret);
+                    if (child.name.charAt(0) == '@') {
+                        attrs.add(child);
+                    }
                 }
+                current.attributes = attrs.toArray(EMPTY);
+                current.children =
+                               Collections.unmodifiableMap(current.children);
             }
+            current.end = ret;
         }
+
+        return ret;
     }
 
     void toString(final TreeElement elem,
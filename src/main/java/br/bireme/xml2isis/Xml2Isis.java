@@ -10,10 +10,13 @@ package br.bireme.xml2isis;
 import br.bireme.utils.TimeString;
 import bruma.BrumaException;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashSet;
-import java.util.regex.Pattern;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import javax.management.JMException;
 import javax.xml.stream.XMLStreamException;
 
 /**
@@ -21,16 +24,52 @@ import javax.xml.stream.XMLStreamException;
  * @author Heitor Barbieri
  */
 public class Xml2Isis {
-    private static class MyFileFilter implements FileFilter {
-        private final Pattern pat;
+    /**
+     * Input files that are not in the checkpoint journal yet.
+     */
+    private static class PendingFiles implements Iterator<File> {
+        private final Iterator<File> files;
+        private final Checkpoint checkpoint;
+        private File next;
+        private int skipped;
 
-        private MyFileFilter(final String regExp) {
-            assert regExp != null;
-            pat = Pattern.compile(regExp);
+        private PendingFiles(final Iterator<File> files,
+                             final Checkpoint checkpoint) {
+            assert files != null;
+            assert checkpoint != null;
+            this.files = files;
+            this.checkpoint = checkpoint;
+            this.next = null;
+            this.skipped = 0;
         }
-        public boolean accept(File pathname)  {
-            return (pathname.isFile()
-                    && pat.matcher(pathname.getName()).matches());
+
+        @Override
+        public boolean hasNext() {
+            while ((next == null) && files.hasNext()) {
+                final File file = files.next();
+
+                try {
+                    if (checkpoint.isDone(file)) {
+                        skipped++;
+                    } else {
+                        next = file;
+                    }
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public File next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final File ret = next;
+
+            next = null;
+            return ret;
         }
     }
 
@@ -39,47 +78,91 @@ public class Xml2Isis {
     private static void usage() {
         System.err.println("Application to import documents from xml files into Isis database records.\n");
         System.err.println("usage: Xml2Isis fileDir=<directory> => xml file directory\n"
-                         +  "                xmlRegExp=<expression> => regular expression used to filter the input xml files\n"
-                         +  "                convTable=<file> => file having the convertion from xml elements into isis record fields\n"
+                         +  "                xmlRegExp=<expression> => regular expression used to filter the input xml files (gzip and zstd files are decompressed on the fly)\n"
+                         +  "                or xmlGlob=<pattern> => glob pattern used to filter the input xml files (ex: *.xml.gz)\n"
+                         +  "                or fileList=<file> => file with the input xml files, one per line ('-' for standard input). Relative paths are taken from fileDir\n"
+                         +  "                [--recursive] => also search the fileDir subdirectories (links to directories are not followed)\n"
+                         +  "                convTable=<file> => file having the convertion from xml elements into isis record fields ('<tag>^<x> <xpath>' puts the element into the subfield x of the tag field, a xpath step may be '*', 'name[n]' or '//name'. Two xpaths of fields can not match the same element, f ex, 'a/*' and 'a/b' or 'a/b' and 'a//b', but their intermediate steps can, f ex, 'a/b/c' and 'a/*/d'. A '//name' element is not matched again inside itself)\n"
                          +  "                outDb=<name> => output Isis database\n"
                          +  "                [--createMissingFields] => create an empty field if the xml element was not found\n"
                          +  "                [--createFileNameField] => create a record field with the name of the file from where the document comes\n"
                          +  "                [--allowSubElements] => include xml subelements as part of the element text content\n"
+                         +  "                [--composeMeshHeadings] => create the MeSH heading field 351 from the fields 3511-3514 while converting (no Medline post processing)\n"
+                         +  "                [--nativeEntities] => let the xml parser read the entities: '&', '<' and '>' are written as '&amp;', '&lt;' and '&gt;' as in the default mode, but character references (f ex, '&#233;'), '&quot;' and '&apos;' come out resolved and a '>' not escaped in the xml comes out as '&gt;'\n"
+                         +  "                [inputMode=<chars|bytes|mmap>] => how the files are read (bytes and mmap require --nativeEntities)\n"
                          +  "                [fileEncoding=<encoding>] => the encoding of the xml files \n"
                          +  "                [dbEncoding=<encoding>] => the encoding of the output database\n"
                          +  "                [tell=<number>] => prints an message each <number> documents processed\n"
                          +  "                [removableFieldTags=<tag1>,<tag2>,...,<tagN>]  => delete those fields if there are too many fields\n"
-                         +  "                [maxFieldLength=<len>] => limit the size of removableFieldTags if record size is too big");
+                         +  "                [maxFieldLength=<len>] => limit the size of removableFieldTags if record size is too big\n"
+                         +  "                [threads=<number>] => number of xml files converted in parallel\n"
+                         +  "                [splitChunk=<KB>] => also cut each xml file in chunks of about <KB> kilobytes of whole records converted in parallel (requires threads > 1)\n"
+                         +  "                [staxFactory=<class>] => XMLInputFactory implementation used to parse the xml files\n"
+                         +  "                [writeBatch=<number>] => write the records in a separate thread, in batches of <number> records\n"
+                         +  "                [writeBatchSize=<chars>] => write the records in a separate thread, in batches of about <chars> bytes\n"
+                         +  "                [writeQueue=<number>] => max number of batches waiting to be written (default 4)\n"
+                         +  "                [mstOutput=<bruma|direct|mmap>] => how a new master is written: by Bruma, encoded directly (same files) or encoded directly through preallocated memory mapped regions\n"
+                         +  "                [--checkpoint] => keep a journal (<outDb>.ckp) of the converted files\n"
+                         +  "                [--resume] => go on with the journal: skip the converted files and append the other ones to outDb\n"
+                         +  "                [metrics=<file>] => write the conversion metrics to <file> as a JSON object per line ('-' for the standard error)\n"
+                         +  "                [metricsInterval=<seconds>] => time between two metrics lines (default 10)\n"
+                         +  "                [--jmx] => publish the conversion metrics as the MBean br.bireme.xml2isis:type=ConversionMetrics");
         System.exit(1);
     }
 
     public static void main(final String[] args) throws IOException,
                                                         XMLStreamException,
-                                                        BrumaException {
-        if (args.length < 4) {
+                                                        BrumaException,
+                                                        JMException {
+        if (args.length < 3) {
             usage();
         }
 
-        final File directory;
-        final File[] files;
+        final InputFiles allFiles;
+        final Iterator<File> files;
+        final Checkpoint checkpoint;
+        final boolean append;
         final XPathTree tree;
         final IsisWriter writer;
+        final WalkerFactory walkers;
+        final ConversionMetrics metrics;
+        final MetricsReporter reporter;
         final TimeString time = new TimeString();
 
         String dir = null;
         String regExp = null;
+        String glob = null;
+        String fileList = null;
+        boolean recursive = false;
         String table = null;
         String outDb = null;
+        String staxFactory = null;
+        String metricsFile = null;
         String fileEncoding = "iso-8859-1";
         String dbEncoding = "iso-8859-1";
         boolean createMissFld = false;
         boolean createFilNameFld = false;
         boolean allowSubElements = false;
+        boolean nativeEntities = false;
+        boolean composeMesh = false;
+        boolean useCheckpoint = false;
+        boolean resume = false;
+        boolean jmx = false;
+        IsisWriter.MstOutput mstOutput = IsisWriter.MstOutput.BRUMA;
+        StaxXmlWalker.InputMode inputMode = StaxXmlWalker.InputMode.CHARS;
         String parm;
+        String pattern;
         StaxXmlWalker walker;
+        CRC32 crc;
         int tell = 1;
         HashSet<Integer> removableFieldTags = new HashSet<>();
         int maxFieldLength = IsisWriter.MEDLINE_MAX_FIELD_SIZE;
+        int threads = 1;
+        int splitChunk = 0;
+        int writeBatch = 0;
+        int writeBatchSize = 0;
+        int writeQueue = 4;
+        int metricsInterval = 10;
         int cur = 1;
 
         for (int counter = 0; counter < args.length; counter++) {
@@ -88,6 +171,12 @@ public class Xml2Isis {
                 dir = parm.substring(8);
             } else if (parm.startsWith("xmlRegExp=")) {
                 regExp = parm.substring(10);
+            } else if (parm.startsWith("xmlGlob=")) {
+                glob = parm.substring(8);
+            } else if (parm.startsWith("fileList=")) {
+                fileList = parm.substring(9);
+            } else if (parm.compareTo("--recursive") == 0) {
+                recursive = true;
             } else if (parm.startsWith("convTable=")) {
                 table = parm.substring(10);
             } else if (parm.startsWith("outDb=")) {
@@ -98,6 +187,18 @@ public class Xml2Isis {
                 createFilNameFld = true;
             } else if (parm.compareTo("--allowSubElements") == 0) {
                 allowSubElements = true;
+            } else if (parm.compareTo("--composeMeshHeadings") == 0) {
+                composeMesh = true;
+            } else if (parm.compareTo("--checkpoint") == 0) {
+                useCheckpoint = true;
+            } else if (parm.compareTo("--resume") == 0) {
+                useCheckpoint = true;
+                resume = true;
+            } else if (parm.compareTo("--nativeEntities") == 0) {
+                nativeEntities = true;
+            } else if (parm.startsWith("inputMode=")) {
+                inputMode = StaxXmlWalker.InputMode.valueOf(
+                                          parm.substring(10).toUpperCase());
             } else if (parm.startsWith("fileEncoding=")) {
                 fileEncoding = parm.substring(13);
             } else if (parm.startsWith("dbEncoding=")) {
@@ -111,43 +212,172 @@ public class Xml2Isis {
                 }
             } else if (parm.startsWith("maxFieldLength=")) {
                 maxFieldLength = Integer.parseInt(parm.substring(15));
+            } else if (parm.startsWith("staxFactory=")) {
+                staxFactory = parm.substring(12);
+            } else if (parm.startsWith("writeBatch=")) {
+                writeBatch = Integer.parseInt(parm.substring(11));
+            } else if (parm.startsWith("writeBatchSize=")) {
+                writeBatchSize = Integer.parseInt(parm.substring(15));
+            } else if (parm.startsWith("writeQueue=")) {
+                writeQueue = Integer.parseInt(parm.substring(11));
+            } else if (parm.startsWith("mstOutput=")) {
+                mstOutput = IsisWriter.MstOutput.valueOf(
+                                          parm.substring(10).toUpperCase());
+            } else if (parm.startsWith("metrics=")) {
+                metricsFile = parm.substring(8);
+            } else if (parm.startsWith("metricsInterval=")) {
+                metricsInterval = Integer.parseInt(parm.substring(16));
+            } else if (parm.compareTo("--jmx") == 0) {
+                jmx = true;
+            } else if (parm.startsWith("threads=")) {
+                threads = Integer.parseInt(parm.substring(8));
+            } else if (parm.startsWith("splitChunk=")) {
+                splitChunk = Integer.parseInt(parm.substring(11));
             } else {
                 usage();
             }
         }
 
-        if ((dir == null) || (regExp == null)
-                                       || (table == null) || (outDb == null)) {
+        if ((table == null) || (outDb == null)) {
             throw new IllegalArgumentException("missing parameter");
         }
-
-        directory = new File(dir);
-        if (!directory.isDirectory()) {
-            throw new IllegalArgumentException(dir + " is not a directory");
+        if ((regExp != null) && (glob != null)) {
+            throw new IllegalArgumentException(
+                                     "use either xmlRegExp or xmlGlob");
+        }
+        if ((splitChunk > 0) && (threads <= 1)) {
+            throw new IllegalArgumentException("splitChunk requires threads > 1");
+        }
+        pattern = (regExp != null) ? ("regex:" + regExp)
+                                   : ((glob != null) ? ("glob:" + glob) : null);
+        if (fileList == null) {
+            if ((dir == null) || (pattern == null)) {
+                throw new IllegalArgumentException("missing parameter");
+            }
+            // the mfns follow the file name order
+            allFiles = InputFiles.fromDirectory(new File(dir), pattern,
+                                                                   recursive);
+        } else {
+            allFiles = InputFiles.fromList(fileList,
+                              (dir == null) ? null : new File(dir), pattern);
+        }
+        // the journal keeps the paths relative to fileDir or absolute ones
+        checkpoint = useCheckpoint ? new Checkpoint(outDb, resume,
+                          (fileList == null) ? new File(dir) : null) : null;
+        append = (checkpoint != null) && checkpoint.hasEntries();
+        if (append) {
+            checkpoint.truncate(outDb, dbEncoding, threads);
+            files = new PendingFiles(allFiles, checkpoint);
+            System.out.println("Appending after mfn " + checkpoint.getLastMfn());
+        } else {
+            files = allFiles;
         }
-
-        files = directory.listFiles(new MyFileFilter(regExp));
-        tree = new XPathTree(new File(table));
         writer = new IsisWriter(outDb, dbEncoding, removableFieldTags,
-                                                                maxFieldLength);
+                                maxFieldLength, false, append, mstOutput);
+        writer.setComposeMeshHeadings(composeMesh);
+        if ((writeBatch > 0) || (writeBatchSize > 0)) {
+            writer.setWriteBehind(
+                (writeBatch > 0) ? writeBatch : Integer.MAX_VALUE,
+                (writeBatchSize > 0) ? writeBatchSize : Integer.MAX_VALUE,
+                writeQueue);
+        }
+        tree = new XPathTree(new File(table));
+        walkers = new WalkerFactory(staxFactory, tree, createMissFld,
+                       allowSubElements, fileEncoding, nativeEntities, inputMode);
+        walkers.createFileNameField(createFilNameFld);
+        metrics = ((metricsFile != null) || jmx) ? new ConversionMetrics()
+                                                  : null;
+        writer.setMetrics(metrics);
+        walkers.setMetrics(metrics);
+        if (jmx) {
+            metrics.register(outDb);
+        }
+        reporter = (metricsFile == null) ? null
+                    : new MetricsReporter(metrics, metricsFile, metricsInterval);
         time.start();
 
-        for (File curFile : files) {
+        if (threads > 1) {
+            final ParallelConverter converter = new ParallelConverter(
+                    walkers, writer, dbEncoding, removableFieldTags,
+                    maxFieldLength, threads);
+            converter.setCheckpoint(checkpoint);
+            if (splitChunk > 0) {
+                if (walkers.isSplittable()) {
+                    converter.setSplitChunk(splitChunk * 1024);
+                } else {
+                    System.err.println("WARNING: the xml files can not be "
+                                       + "split by records (see convTable and "
+                                       + "fileEncoding). Ignoring splitChunk.");
+                }
+            }
+            cur += converter.convert(files, tell, time);
+            writer.close();
+            allFiles.close();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+            closeMetrics(metrics, reporter);
+            printSkipped(files);
+            System.out.println("Total converted files: " + (cur - 1));
+            printPruneCount(converter.getPruneCount());
+            return;
+        }
+
+        while (files.hasNext()) {
+            final File curFile = files.next();
+
             if ((cur % tell) == 0) {
                 System.out.println("+++ " + cur + " : "
                    + curFile.getCanonicalPath() + " ("
                    + time.getTime() + ")");
             }
             cur++;
-            walker = new StaxXmlWalker(curFile, tree, writer,
-                                       createMissFld, allowSubElements, fileEncoding);
-            walker.createFileNameField(createFilNameFld);
+            crc = (checkpoint == null) ? null : new CRC32();
+            walker = walkers.newWalker(curFile, writer, crc);
             walker.convert();
             walker.close();
+            if (checkpoint != null) {
+                checkpoint.fileDone(writer, curFile, crc.getValue());
+            }
+            if (metrics != null) {
+                metrics.fileDone();
+            }
         }
 
         writer.close();
+        allFiles.close();
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+        closeMetrics(metrics, reporter);
 
+        printSkipped(files);
         System.out.println("Total converted files: " + (cur - 1));
+        printPruneCount(writer.getPruneCount());
+    }
+
+    private static void closeMetrics(final ConversionMetrics metrics,
+                                     final MetricsReporter reporter)
+                                             throws IOException, JMException {
+        if (reporter != null) {
+            reporter.close();
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
+    }
+
+    private static void printSkipped(final Iterator<File> files) {
+        if (files instanceof PendingFiles) {
+            System.out.println("Skipped converted files: "
+                                             + ((PendingFiles)files).skipped);
+        }
+    }
+
+    private static void printPruneCount(final long count) {
+        if (count > 0) {
+            System.out.println("Removable fields deleted (too many fields): "
+                                                          + count + " time(s)");
+        }
     }
 }
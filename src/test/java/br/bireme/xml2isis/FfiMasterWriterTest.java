@@ -0,0 +1,218 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.BrumaException;
+import bruma.master.Field;
+import bruma.master.Master;
+import bruma.master.MasterFactory;
+import bruma.master.Record;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip of the masters written by FfiMasterWriter: the files must be the
+ * same ones written by Bruma (MasterFactory.setFFI(true)) and every record
+ * must be read back by MasterFactory.open().
+ *
+ * @author Heitor Barbieri
+ */
+public class FfiMasterWriterTest {
+    private static final String CHARS = "abcXYZ 09<>&áçãéüñ";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesNoRecord() throws Exception {
+        checkRoundTrip(new ArrayList<Record>(), "UTF-8", false);
+    }
+
+    @Test
+    public void writesManyRecords() throws Exception {
+        // more than one xrf block (127 pointers each)
+        final List<Record> records = randomRecords(1000, 8, 40, 1);
+
+        checkRoundTrip(records, "UTF-8", false);
+        checkRoundTrip(records, "ISO-8859-1", false);
+    }
+
+    @Test
+    public void writesManyRecordsMapped() throws Exception {
+        checkRoundTrip(randomRecords(1000, 8, 40, 2), "UTF-8", true);
+    }
+
+    @Test
+    public void writesLargeFields() throws Exception {
+        // fields larger than the encoding buffer (DATA_SIZE)
+        final List<Record> records = randomRecords(20, 3, 100000, 3);
+
+        checkRoundTrip(records, "UTF-8", false);
+        checkRoundTrip(records, "UTF-8", true);
+    }
+
+    @Test
+    public void writesRecordsCrossingBlocks() throws Exception {
+        final List<Record> records = new ArrayList<>();
+
+        // the first record starts at 64 and ends after the first 512 block
+        for (int len = 500; len < 1600; len += 37) {
+            final Record rec = new Record();
+
+            rec.addField(10, repeat('x', len));
+            rec.addField(20, repeat('y', len % 97));
+            records.add(rec);
+        }
+        assertTrue(records.get(0).getRecordLength("UTF-8", true)
+                                        > FfiMasterWriter.MST_BLOCK_SIZE - 64);
+        checkRoundTrip(records, "UTF-8", false);
+        checkRoundTrip(records, "UTF-8", true);
+    }
+
+    @Test
+    public void truncatesAfterMfn() throws Exception {
+        final List<Record> records = randomRecords(300, 8, 200, 4);
+
+        // the last mfn at the end, in the middle and at the start of xrf blocks
+        for (int lastMfn : new int[] {0, 1, 100, 126, 127, 128, 254, 299}) {
+            final File dir = folder.newFolder();
+            final String expected = new File(dir, "expected").getPath();
+            final String actual = new File(dir, "actual").getPath();
+
+            write(expected, records.subList(0, lastMfn));
+            write(actual, records);
+            assertTrue(FfiMasterWriter.truncate(actual, lastMfn));
+
+            assertSameFile(expected + ".mst", actual + ".mst");
+            assertSameFile(expected + ".xrf", actual + ".xrf");
+        }
+    }
+
+    private static void write(final String dbName,
+                              final List<Record> records)
+                                                        throws BrumaException {
+        final FfiMasterWriter writer = new FfiMasterWriter(dbName, "UTF-8",
+                                                                       false);
+        for (Record rec : records) {
+            writer.writeRecord(rec);
+        }
+        writer.close();
+    }
+
+    private void checkRoundTrip(final List<Record> records,
+                                final String encoding,
+                                final boolean mapped) throws BrumaException,
+                                                             IOException {
+        final File dir = folder.newFolder();
+        final String expected = new File(dir, "bruma").getPath();
+        final String actual = new File(dir, "ffi").getPath();
+        final Master bruma = (Master)MasterFactory.getInstance(expected)
+                                                  .setInMemoryXrf(false)
+                                                  .setFFI(true)
+                                                  .setMaxGigaSize(32)
+                                                  .setEncoding(encoding)
+                                                  .create();
+        for (Record rec : records) {
+            bruma.writeRecord(rec);
+        }
+        bruma.close();
+
+        final FfiMasterWriter writer = new FfiMasterWriter(actual, encoding,
+                                                                      mapped);
+        for (Record rec : records) {
+            writer.writeRecord(rec);
+        }
+        writer.close();
+
+        assertSameFile(expected + ".mst", actual + ".mst");
+        assertSameFile(expected + ".xrf", actual + ".xrf");
+
+        final Master master = MasterFactory.getInstance(actual)
+                                           .setEncoding(encoding).open();
+        try {
+            assertEquals(records.size() + 1,
+                                     master.getControlRecord().getNxtmfn());
+            for (int mfn = 1; mfn <= records.size(); mfn++) {
+                final Record rec = master.getRecord(mfn);
+
+                assertEquals(Record.Status.ACTIVE, rec.getStatus());
+                assertSameFields(records.get(mfn - 1), rec);
+            }
+        } finally {
+            master.close();
+        }
+    }
+
+    private static void assertSameFile(final String expected,
+                                       final String actual) throws IOException {
+        assertArrayEquals(actual,
+                          Files.readAllBytes(new File(expected).toPath()),
+                          Files.readAllBytes(new File(actual).toPath()));
+    }
+
+    private static void assertSameFields(final Record expected,
+                                         final Record actual)
+                                                        throws BrumaException {
+        final List<Field> efields = expected.getFields();
+        final List<Field> afields = actual.getFields();
+
+        assertEquals(efields.size(), afields.size());
+        for (int idx = 0; idx < efields.size(); idx++) {
+            assertEquals(efields.get(idx).getId(), afields.get(idx).getId());
+            assertEquals(efields.get(idx).getContent(),
+                                                afields.get(idx).getContent());
+        }
+    }
+
+    private static List<Record> randomRecords(final int size,
+                                              final int maxFields,
+                                              final int maxLen,
+                                              final long seed)
+                                                        throws BrumaException {
+        final Random random = new Random(seed);
+        final List<Record> records = new ArrayList<>();
+
+        for (int count = 0; count < size; count++) {
+            final Record rec = new Record();
+            final int nvf = random.nextInt(maxFields) + 1;
+
+            for (int fld = 0; fld < nvf; fld++) {
+                final StringBuilder content = new StringBuilder();
+                final int len = random.nextInt(maxLen) + 1;
+
+                for (int pos = 0; pos < len; pos++) {
+                    content.append(CHARS.charAt(random.nextInt(CHARS.length())));
+                }
+                rec.addField(random.nextInt(999) + 1, content.toString());
+            }
+            records.add(rec);
+        }
+        return records;
+    }
+
+    private static String repeat(final char ch,
+                                 final int len) {
+        final StringBuilder builder = new StringBuilder(len);
+
+        for (int idx = 0; idx < len; idx++) {
+            builder.append(ch);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,120 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.master.Record;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Table paths that match the same element: allowed if only one of them
+ * writes a field, rejected when the table is compiled otherwise.
+ *
+ * @author Heitor Barbieri
+ */
+public class PathAutomatonTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sharedIntermediateSteps() throws Exception {
+        assertEquals("[10=c, 20=d, 20=x]", convert(
+                "10 /S/R/A/B/C\n20 /S/R/*/D\n",
+                "<S><R><A><B><C>c</C></B><D>d</D></A><X><D>x</D></X></R></S>"));
+    }
+
+    @Test
+    public void descendantAndWildcard() throws Exception {
+        assertEquals("[10=1, 20=t, 10=2, 20=u, 10=3]", convert(
+                "10 /S/R//Y\n20 /S/R/*/T\n",
+                "<S><R><Y>1</Y><Z><T>t</T><Y>2</Y></Z><Y>3<T>u</T></Y></R></S>"));
+    }
+
+    @Test
+    public void positionalAndWildcard() throws Exception {
+        assertEquals("[10=1, 30=c1, 20=2, 30=c2]", convert(
+                "10 /S/R/A[1]/B\n20 /S/R/A[2]/B\n30 /S/R/*/C\n",
+                "<S><R><A><B>1</B><C>c1</C></A><A><B>2</B><C>c2</C></A>"
+                                            + "<A><B>3</B></A></R></S>"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTwoFieldsOfWildcard() throws Exception {
+        convert("10 /S/R/*\n20 /S/R/A\n", "<S><R/></S>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTwoFieldsOfDescendant() throws Exception {
+        convert("10 /S/R/A/B\n20 /S/R//B\n", "<S><R/></S>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTwoFieldsOfPosition() throws Exception {
+        convert("10 /S/R/A[1]\n20 /S/R/*[1]\n", "<S><R/></S>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTwoFieldsOfAttribute() throws Exception {
+        convert("10 /S/R/A@x\n20 /S/R/*@x\n", "<S><R/></S>");
+    }
+
+    /**
+     * @return the fields of the converted records as [tag=content, ...]
+     */
+    private String convert(final String table,
+                           final String xml) throws Exception {
+        final File tfile = folder.newFile();
+        final File doc = folder.newFile();
+
+        write(tfile, table);
+        write(doc, xml);
+
+        final WalkerFactory walkers = new WalkerFactory(null,
+                      new XPathTree(tfile), false, false, "UTF-8", false,
+                                              StaxXmlWalker.InputMode.CHARS);
+        final IsisWriter writer = new IsisWriter("test", "UTF-8",
+                                      new HashSet<Integer>(),
+                                      IsisWriter.DEFAULT_MAX_FIELD_LEN, true);
+        final StaxXmlWalker walker = walkers.newWalker(doc, writer);
+
+        try {
+            walker.convert();
+        } finally {
+            walker.close();
+        }
+        return fields(writer.takeRecords());
+    }
+
+    private static String fields(final List<Record> records)
+                                                          throws Exception {
+        final StringBuilder builder = new StringBuilder();
+
+        for (Record rec : records) {
+            for (bruma.master.Field fld : rec.getFields()) {
+                builder.append((builder.length() == 0) ? "[" : ", ")
+                       .append(fld.getId()).append('=')
+                       .append(fld.getContent());
+            }
+        }
+        return builder.append(']').toString();
+    }
+
+    private static void write(final File file,
+                              final String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,110 @@
+/*=========================================================================
+
+    Xml2Isis © Pan American Health Organization, 2018.
+    See License at: https://github.com/bireme/Xml2Isis/blob/master/LICENSE.txt
+
+  ==========================================================================*/
+
+package br.bireme.xml2isis;
+
+import bruma.master.Record;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The fields written with --nativeEntities, in every input mode, must be the
+ * same ones of the default mode, which keeps the entities of the xml file.
+ * Only the character references differ: the parser resolves them.
+ *
+ * @author Heitor Barbieri
+ */
+public class StaxXmlWalkerTest {
+    private static final String TABLE = "10 /S/R/T\n20 /S/R@a\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nativeEntitiesKeepTheEscapedText() throws Exception {
+        final String xml = "<S><R a=\"x &amp; y &lt;z&gt;\">"
+                + "<T>J &amp; B &lt;i&gt;x&lt;/i&gt; 1 &gt; 0 &amp;&amp;</T>"
+                + "</R></S>";
+
+        final String legacy = convert(xml, false,
+                                              StaxXmlWalker.InputMode.CHARS);
+
+        assertEquals("[20=x &amp; y &lt;z&gt;, "
+                   + "10=J &amp; B &lt;i&gt;x&lt;/i&gt; 1 &gt; 0 &amp;&amp;]",
+                                                                      legacy);
+        for (StaxXmlWalker.InputMode mode : StaxXmlWalker.InputMode.values()) {
+            assertEquals(mode.toString(), legacy, convert(xml, true, mode));
+        }
+    }
+
+    @Test
+    public void nativeEntitiesResolveCharacterReferences() throws Exception {
+        final String xml = "<S><R><T>caf&#233; &#xE9;</T></R></S>";
+
+        assertEquals("[10=caf&#233; &#xE9;]", convert(xml, false,
+                                              StaxXmlWalker.InputMode.CHARS));
+        assertEquals("[10=café é]", convert(xml, true,
+                                              StaxXmlWalker.InputMode.BYTES));
+    }
+
+    /**
+     * @return the fields of the converted records as [tag=content, ...]
+     */
+    private String convert(final String xml,
+                           final boolean nativeEntities,
+                           final StaxXmlWalker.InputMode mode)
+                                                           throws Exception {
+        final File table = folder.newFile();
+        final File doc = folder.newFile();
+
+        write(table, TABLE);
+        write(doc, xml);
+
+        final WalkerFactory walkers = new WalkerFactory(null,
+                       new XPathTree(table), false, false, "UTF-8",
+                                                       nativeEntities, mode);
+        final IsisWriter writer = new IsisWriter("test", "UTF-8",
+                                      new HashSet<Integer>(),
+                                      IsisWriter.DEFAULT_MAX_FIELD_LEN, true);
+        final StaxXmlWalker walker = walkers.newWalker(doc, writer);
+
+        try {
+            walker.convert();
+        } finally {
+            walker.close();
+        }
+        return fields(writer.takeRecords());
+    }
+
+    private static String fields(final List<Record> records)
+                                                          throws Exception {
+        final StringBuilder builder = new StringBuilder();
+
+        for (Record rec : records) {
+            for (bruma.master.Field fld : rec.getFields()) {
+                builder.append((builder.length() == 0) ? "[" : ", ")
+                       .append(fld.getId()).append('=')
+                       .append(fld.getContent());
+            }
+        }
+        return builder.append(']').toString();
+    }
+
+    private static void write(final File file,
+                              final String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}